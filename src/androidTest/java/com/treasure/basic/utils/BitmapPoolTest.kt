@@ -0,0 +1,71 @@
+package com.treasure.basic.utils
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class BitmapPoolTest {
+
+  @Before
+  fun setUp() {
+    BitmapPool.clear()
+  }
+
+  @Test
+  fun nullDecodeWithInBitmapRetriesWithout() {
+    val pooled = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888)
+    BitmapPool.put(pooled)
+    val puts = BitmapPool.putCount
+    val inBitmaps = ArrayList<Bitmap?>()
+    val options = BitmapFactory.Options().apply {inPreferredConfig = Bitmap.Config.ARGB_8888}
+
+    //模拟 decodeFile: inBitmap 不可复用时返回null而不是抛出异常
+    val bitmap = BitmapPool.decodeWithPool(options, 100, 100) {
+      inBitmaps.add(it.inBitmap)
+      if (it.inBitmap != null) null else Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888)
+    }
+
+    assertNotNull(bitmap)
+    assertEquals(listOf(pooled, null), inBitmaps)
+    assertNull(options.inBitmap)
+    assertEquals(puts + 1, BitmapPool.putCount)
+    assertSame(pooled, BitmapPool.get(100, 100, Bitmap.Config.ARGB_8888))
+  }
+
+  @Test
+  fun nullDecodeWithoutInBitmapDoesNotRetry() {
+    var calls = 0
+    val options = BitmapFactory.Options().apply {inPreferredConfig = Bitmap.Config.ARGB_8888}
+
+    val bitmap = BitmapPool.decodeWithPool(options, 100, 100) {
+      calls++
+      null
+    }
+
+    assertNull(bitmap)
+    assertEquals(1, calls)
+  }
+
+  @Test
+  fun failedDecodeIsRetriedOnce() {
+    BitmapPool.put(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888))
+    var calls = 0
+    val options = BitmapFactory.Options().apply {inPreferredConfig = Bitmap.Config.ARGB_8888}
+
+    val bitmap = BitmapPool.decodeWithPool(options, 100, 100) {
+      calls++
+      null
+    }
+
+    assertNull(bitmap)
+    assertEquals(2, calls)
+  }
+}
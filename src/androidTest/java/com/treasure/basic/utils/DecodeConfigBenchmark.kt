@@ -0,0 +1,121 @@
+package com.treasure.basic.utils
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.LinearGradient
+import android.graphics.Paint
+import android.graphics.Shader
+import android.os.SystemClock
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.ByteArrayOutputStream
+import java.util.Random
+import kotlin.math.log10
+
+/**
+ * 对比 ARGB_8888 与 RGB_565 解码不透明JPEG: 解码+缩放耗时, 内存, 编码体积, 以及两者输出之间的PSNR
+ * 结果输出到 logcat, tag 为 DecodeConfigBenchmark
+ */
+@RunWith(AndroidJUnit4::class)
+class DecodeConfigBenchmark {
+
+  companion object {
+    private const val TAG = "DecodeConfigBenchmark"
+    private const val ROUNDS = 5
+    private const val TARGET = 1080
+  }
+
+  @Test
+  fun compareArgb8888WithRgb565() {
+    val jpeg = createJpeg(4000, 3000)
+    val argb = run(jpeg, Bitmap.Config.ARGB_8888)
+    val rgb = run(jpeg, Bitmap.Config.RGB_565)
+
+    val psnr = psnr(decode(argb.second), decode(rgb.second))
+    Log.i(TAG, "ARGB_8888: ${argb.first}")
+    Log.i(TAG, "RGB_565: ${rgb.first}")
+    Log.i(TAG, "PSNR(RGB_565 vs ARGB_8888)=${"%.2f".format(psnr)}dB")
+    assertTrue(psnr > 30)
+  }
+
+  private fun run(jpeg: ByteArray, config: Bitmap.Config): Pair<String, ByteArray> {
+    var decodeTime = 0L
+    var scaleTime = 0L
+    var bytes = 0
+    var output = ByteArray(0)
+    repeat(ROUNDS) {
+      var start = SystemClock.elapsedRealtimeNanos()
+      val options = BitmapFactory.Options().apply {
+        inSampleSize = 2
+        inPreferredConfig = config
+      }
+      val decoded = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.size, options)
+      decodeTime += SystemClock.elapsedRealtimeNanos() - start
+      start = SystemClock.elapsedRealtimeNanos()
+      val scale = TARGET / minOf(decoded.width, decoded.height).toFloat()
+      val scaled = Bitmap.createScaledBitmap(decoded, (decoded.width * scale).toInt(), (decoded.height * scale).toInt(), true)
+      scaleTime += SystemClock.elapsedRealtimeNanos() - start
+      bytes = decoded.allocationByteCount + scaled.allocationByteCount
+      output = ByteArrayOutputStream().use {
+        scaled.compress(Bitmap.CompressFormat.JPEG, 80, it)
+        it.toByteArray()
+      }
+      decoded.recycle()
+      scaled.recycle()
+    }
+    val summary = "decode=${decodeTime / ROUNDS / 1000}us scale=${scaleTime / ROUNDS / 1000}us " +
+        "bitmapBytes=$bytes jpegBytes=${output.size}"
+    return summary to output
+  }
+
+  private fun decode(jpeg: ByteArray): Bitmap {
+    return BitmapFactory.decodeByteArray(jpeg, 0, jpeg.size)
+  }
+
+  private fun psnr(a: Bitmap, b: Bitmap): Double {
+    val width = minOf(a.width, b.width)
+    val height = minOf(a.height, b.height)
+    val rowA = IntArray(width)
+    val rowB = IntArray(width)
+    var sum = 0.0
+    for (y in 0 until height) {
+      a.getPixels(rowA, 0, width, 0, y, width, 1)
+      b.getPixels(rowB, 0, width, 0, y, width, 1)
+      for (x in 0 until width) {
+        for (shift in intArrayOf(0, 8, 16)) {
+          val diff = ((rowA[x] shr shift) and 0xFF) - ((rowB[x] shr shift) and 0xFF)
+          sum += diff * diff
+        }
+      }
+    }
+    val mse = sum / (width.toLong() * height * 3)
+    return if (mse == 0.0) 100.0 else 10 * log10(255.0 * 255.0 / mse)
+  }
+
+  private fun createJpeg(width: Int, height: Int): ByteArray {
+    val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+    val paint = Paint().apply {
+      shader = LinearGradient(0f, 0f, width.toFloat(), height.toFloat(), Color.RED, Color.CYAN, Shader.TileMode.CLAMP)
+    }
+    Canvas(bitmap).drawRect(0f, 0f, width.toFloat(), height.toFloat(), paint)
+    val random = Random(42)
+    val pixels = IntArray(width)
+    for (y in 0 until height step 3) {
+      bitmap.getPixels(pixels, 0, width, 0, y, width, 1)
+      for (x in 0 until width) {
+        pixels[x] = pixels[x] xor (random.nextInt(16) * 0x010101)
+      }
+      bitmap.setPixels(pixels, 0, width, 0, y, width, 1)
+    }
+    return ByteArrayOutputStream().use {
+      bitmap.compress(Bitmap.CompressFormat.JPEG, 95, it)
+      bitmap.recycle()
+      it.toByteArray()
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package com.treasure.basic.utils
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.LinearGradient
+import android.graphics.Paint
+import android.graphics.Shader
+import android.os.SystemClock
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+import java.io.FileOutputStream
+import java.util.Random
+
+/**
+ * 对比压缩体积计算方式: 写入 compress_copy.jpg 再读取 file.length(), 与编码到内存缓冲区
+ * 结果输出到 logcat, tag 为 ImageCompressBenchmark
+ */
+@RunWith(AndroidJUnit4::class)
+class ImageCompressMeasureBenchmark {
+
+  companion object {
+    private const val TAG = "ImageCompressBenchmark"
+    private const val ROUNDS = 10
+  }
+
+  @Test
+  fun measureInMemoryVsDisk() {
+    val context = InstrumentationRegistry.getInstrumentation().targetContext
+    val copy = File(context.externalCacheDir ?: context.cacheDir, "compress_copy.jpg")
+    val buffer = ReusableByteArrayOutputStream()
+
+    for (size in intArrayOf(300, 1080, 2160)) {
+      val bitmap = createSample(size, size * 4 / 3)
+      var diskTime = 0L
+      var memoryTime = 0L
+      var diskLength = 0L
+      var memoryLength = 0L
+      repeat(ROUNDS) {
+        //旧方式: 原画质编码写文件 + 读取大小 + 按压缩比再编码一次
+        var start = SystemClock.elapsedRealtimeNanos()
+        FileOutputStream(copy).use {bitmap.compress(Bitmap.CompressFormat.JPEG, 100, it)}
+        diskLength = copy.length()
+        buffer.reset()
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, buffer)
+        diskTime += SystemClock.elapsedRealtimeNanos() - start
+
+        //新方式: 编码到内存, 不需要压缩时直接作为输出
+        start = SystemClock.elapsedRealtimeNanos()
+        buffer.reset()
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, buffer)
+        memoryLength = buffer.size().toLong()
+        memoryTime += SystemClock.elapsedRealtimeNanos() - start
+      }
+      assertEquals(diskLength, memoryLength)
+      Log.i(TAG, "${bitmap.width}x${bitmap.height}: disk=${diskTime / ROUNDS / 1000}us memory=${memoryTime / ROUNDS / 1000}us " +
+          "saved=${(diskTime - memoryTime) / ROUNDS / 1000}us bytes=$memoryLength")
+      bitmap.recycle()
+    }
+    copy.delete()
+  }
+
+  /**
+   * 渐变加噪点, 接近照片的编码体积
+   */
+  private fun createSample(width: Int, height: Int): Bitmap {
+    val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+    val canvas = Canvas(bitmap)
+    val paint = Paint().apply {
+      shader = LinearGradient(0f, 0f, width.toFloat(), height.toFloat(), Color.BLUE, Color.YELLOW, Shader.TileMode.CLAMP)
+    }
+    canvas.drawRect(0f, 0f, width.toFloat(), height.toFloat(), paint)
+    val random = Random(width.toLong())
+    val pixels = IntArray(width)
+    for (y in 0 until height step 2) {
+      bitmap.getPixels(pixels, 0, width, 0, y, width, 1)
+      for (x in 0 until width) {
+        pixels[x] = pixels[x] xor (random.nextInt(32) * 0x010101)
+      }
+      bitmap.setPixels(pixels, 0, width, 0, y, width, 1)
+    }
+    return bitmap
+  }
+}
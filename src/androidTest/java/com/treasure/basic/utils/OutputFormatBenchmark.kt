@@ -0,0 +1,104 @@
+package com.treasure.basic.utils
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.LinearGradient
+import android.graphics.Paint
+import android.graphics.RadialGradient
+import android.graphics.Shader
+import android.os.SystemClock
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.Random
+
+/**
+ * 各输出格式在固定图集上的编码体积和耗时
+ * 图集由固定随机种子生成, 每次运行一致; 结果输出到 logcat, tag 为 OutputFormatBenchmark
+ */
+@RunWith(AndroidJUnit4::class)
+class OutputFormatBenchmark {
+
+  companion object {
+    private const val TAG = "OutputFormatBenchmark"
+    private const val ROUNDS = 3
+  }
+
+  @Before
+  fun setUp() {
+    AppUtil.bindContext(InstrumentationRegistry.getInstrumentation().targetContext)
+  }
+
+  @Test
+  fun encodeCorpus() {
+    val corpus = listOf(
+      "photo_1080" to createPhoto(1080, 1440, 1L),
+      "photo_300" to createPhoto(300, 400, 2L),
+      "screenshot_1080" to createScreenshot(1080, 2340)
+    )
+    val buffer = ReusableByteArrayOutputStream()
+    for (format in ImageOutputFormat.values()) {
+      if (! format.isSupported) {
+        Log.i(TAG, "$format: unsupported on this device")
+        continue
+      }
+      for ((name, bitmap) in corpus) {
+        var time = 0L
+        repeat(ROUNDS) {
+          buffer.reset()
+          val start = SystemClock.elapsedRealtimeNanos()
+          assertTrue(format.encode(bitmap, format.defaultQuality, buffer))
+          time += SystemClock.elapsedRealtimeNanos() - start
+        }
+        Log.i(TAG, "$format q=${format.defaultQuality} $name: bytes=${buffer.size()} encode=${time / ROUNDS / 1_000_000}ms")
+      }
+    }
+    corpus.forEach {it.second.recycle()}
+  }
+
+  private fun createPhoto(width: Int, height: Int, seed: Long): Bitmap {
+    val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+    val canvas = Canvas(bitmap)
+    canvas.drawRect(0f, 0f, width.toFloat(), height.toFloat(), Paint().apply {
+      shader = LinearGradient(0f, 0f, 0f, height.toFloat(), Color.rgb(90, 150, 220), Color.rgb(230, 210, 170), Shader.TileMode.CLAMP)
+    })
+    val random = Random(seed)
+    val paint = Paint(Paint.ANTI_ALIAS_FLAG)
+    repeat(40) {
+      val x = random.nextFloat() * width
+      val y = random.nextFloat() * height
+      val r = (0.05f + random.nextFloat() * 0.2f) * width
+      paint.shader = RadialGradient(x, y, r, Color.rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256)),
+        Color.TRANSPARENT, Shader.TileMode.CLAMP)
+      canvas.drawCircle(x, y, r, paint)
+    }
+    val pixels = IntArray(width)
+    for (y in 0 until height) {
+      bitmap.getPixels(pixels, 0, width, 0, y, width, 1)
+      for (x in 0 until width) {
+        pixels[x] = pixels[x] xor (random.nextInt(8) * 0x010101)
+      }
+      bitmap.setPixels(pixels, 0, width, 0, y, width, 1)
+    }
+    return bitmap
+  }
+
+  private fun createScreenshot(width: Int, height: Int): Bitmap {
+    val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+    val canvas = Canvas(bitmap)
+    canvas.drawColor(Color.WHITE)
+    val paint = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+      color = Color.DKGRAY
+      textSize = 42f
+    }
+    for (line in 0 until height / 60) {
+      canvas.drawText("Line $line - The quick brown fox jumps over the lazy dog", 32f, 60f * (line + 1), paint)
+    }
+    return bitmap
+  }
+}
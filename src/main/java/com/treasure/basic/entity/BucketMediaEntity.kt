@@ -4,13 +4,33 @@
 
 package com.treasure.basic.entity
 
+import android.content.ContentUris
+import android.net.Uri
 import android.os.Parcelable
+import android.provider.MediaStore
 import kotlinx.parcelize.Parcelize
 
 
 /**
  * 图库
+ * @param count 图片数量
+ * @param coverId 最新一张图片的id, 作为封面
+ * @param latestModified 最新一张图片的修改时间
  * Create by SuoXuechao on 2021/5/21
  */
 @Parcelize
-data class BucketMediaEntity(val bucketId: String, val bucketName: String): Parcelable
+data class BucketMediaEntity @JvmOverloads constructor(
+  val bucketId: String,
+  val bucketName: String,
+  val count: Int = 0,
+  val coverId: Long = 0L,
+  val latestModified: Long = 0L
+): Parcelable {
+
+  /**
+   * 封面图片的Uri, 没有封面时为空
+   */
+  fun getCoverUri(): Uri? {
+    return if (coverId > 0) ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, coverId) else null
+  }
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2021. Beijing EEO Education Ltd. All Rights Reserved.
+ */
+
+package com.treasure.basic.entity
+
+import com.treasure.basic.utils.ImageSource
+
+/**
+ * 批量压缩中单张图片的结果
+ * @param index 在输入列表中的位置
+ * @param result 压缩成功时不为空
+ * @param error 压缩失败的原因
+ */
+data class ImageBatchResult(
+  val index: Int,
+  val source: ImageSource,
+  val result: ImageCompressResult?,
+  val error: Throwable?
+) {
+
+  val isSuccess: Boolean
+    get() = result != null
+}
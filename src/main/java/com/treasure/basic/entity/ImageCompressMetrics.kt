@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2021. Beijing EEO Education Ltd. All Rights Reserved.
+ */
+
+package com.treasure.basic.entity
+
+/**
+ * 单次图片压缩的统计数据
+ * @param inSampleSize 采样率, 命中缓存时为0
+ * @param cacheHit 是否命中 ImageCompressCache, 命中时原图尺寸未知, 为0
+ */
+class ImageCompressMetrics(
+  val compressType: Int,
+  val sourceWidth: Int,
+  val sourceHeight: Int,
+  val sourceBytes: Long,
+  val outputWidth: Int,
+  val outputHeight: Int,
+  val outputBytes: Long,
+  val inSampleSize: Int,
+  val quality: Int,
+  val mimeType: String?,
+  val cacheHit: Boolean,
+  val stages: Map<ImageCompressResult.Stage, StageMetric>
+) {
+
+  /**
+   * 单个阶段的统计
+   * @param wallTime 耗时(ms)
+   * @param cpuTime 线程CPU时间(ms), 设备不支持时为0
+   * @param allocatedBytes 该阶段产生的Bitmap和缓冲区字节数
+   */
+  class StageMetric(val wallTime: Long, val cpuTime: Long, val allocatedBytes: Long) {
+
+    override fun toString(): String {
+      return "StageMetric(wallTime=$wallTime, cpuTime=$cpuTime, allocatedBytes=$allocatedBytes)"
+    }
+  }
+
+  override fun toString(): String {
+    return "ImageCompressMetrics(compressType=$compressType, source=${sourceWidth}x$sourceHeight/$sourceBytes, " +
+        "output=${outputWidth}x$outputHeight/$outputBytes, inSampleSize=$inSampleSize, quality=$quality, " +
+        "mimeType=$mimeType, cacheHit=$cacheHit, stages=$stages)"
+  }
+}
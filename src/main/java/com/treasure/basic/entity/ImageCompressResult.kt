@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2021. Beijing EEO Education Ltd. All Rights Reserved.
+ */
+
+package com.treasure.basic.entity
+
+import java.io.File
+import java.nio.ByteBuffer
+
+/**
+ * 图片压缩结果, 不可变
+ * [file]、[bytes] 和 [buffer] 最多只有一个不为空: 指定了输出文件时结果写入文件, 输出到直接缓冲区时为 [buffer],
+ * 否则为内存中的编码数据; 输出到调用方的输出流时三者都为空, 只记录写入的字节数;
+ * 无需压缩时 [file] 为原文件(去掉了JPEG元数据时与压缩结果相同), [mimeType] 为原文件的类型
+ */
+class ImageCompressResult(
+  val file: File?,
+  val bytes: ByteArray?,
+  val width: Int,
+  val height: Int,
+  val quality: Int,
+  val mimeType: String?,
+  val stageTimings: Map<Stage, Long>,
+  val buffer: ByteBuffer? = null,
+  private val streamedSize: Long = 0L
+) {
+
+  /**
+   * 压缩后的字节数
+   */
+  val size: Long
+    get() = bytes?.size?.toLong() ?: buffer?.limit()?.toLong() ?: file?.length() ?: streamedSize
+
+  /**
+   * 各阶段总耗时(ms)
+   */
+  val totalTime: Long
+    get() = stageTimings.values.sum()
+
+  /**
+   * 压缩流程的各个阶段
+   */
+  enum class Stage {
+    BOUNDS, // 读取图片边框
+    DECODE, // 采样解码
+    SCALE, // 矩阵缩放
+    MEASURE, // 计算压缩比
+    ENCODE, // 编码
+    WRITE // 写入文件
+  }
+
+  override fun toString(): String {
+    return "ImageCompressResult(file=$file, size=$size, width=$width, height=$height, quality=$quality, mimeType=$mimeType, stageTimings=$stageTimings)"
+  }
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) 2021. Beijing EEO Education Ltd. All Rights Reserved.
+ */
+
+package com.treasure.basic.entity
+
+/**
+ * 两次同步之间媒体库图片的变化
+ * @param inserted 新增的图片
+ * @param updated 修改过的图片
+ * @param deleted 删除的图片id
+ * @param full 第一次同步或媒体库版本变化后的全量结果, 此时所有图片都在 [inserted] 中
+ */
+data class ImageMediaDiff(
+  val inserted: List<ImageMediaEntity>,
+  val updated: List<ImageMediaEntity>,
+  val deleted: List<String>,
+  val full: Boolean
+) {
+
+  val isEmpty: Boolean
+    get() = inserted.isEmpty() && updated.isEmpty() && deleted.isEmpty() && ! full
+}
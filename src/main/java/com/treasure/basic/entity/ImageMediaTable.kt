@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2021. Beijing EEO Education Ltd. All Rights Reserved.
+ */
+
+package com.treasure.basic.entity
+
+import android.content.ContentUris
+import android.database.CharArrayBuffer
+import android.net.Uri
+import android.provider.MediaStore
+
+/**
+ * 按列存储的媒体库图片列表, 与 List<[ImageMediaEntity]> 内容相同
+ * 数值列使用基本类型数组, 名称连续存放在一个 CharArray 中, MIME 类型按序号存储;
+ * 读取时才创建 String 和 Uri, 扫描大图库时几乎不产生临时对象
+ */
+class ImageMediaTable internal constructor(capacity: Int) {
+
+  private var ids = LongArray(capacity)
+  private var sizes = LongArray(capacity)
+  private var modifieds = LongArray(capacity)
+  private var widths = IntArray(capacity)
+  private var heights = IntArray(capacity)
+  private var mimeCodes = ByteArray(capacity)
+
+  //第i行的标题为 [nameOffsets[2i], nameOffsets[2i+1]), 文件名为 [nameOffsets[2i+1], nameOffsets[2i+2])
+  private var nameOffsets = IntArray(capacity * 2 + 1)
+  private var names = CharArray(capacity * 32)
+  private var nameLength = 0
+  private val mimeTypes = ArrayList<String>(4)
+
+  /**
+   * 行数
+   */
+  var size = 0
+    private set
+
+  fun getId(index: Int): Long = ids[checkIndex(index)]
+
+  /**
+   * 每次调用都会创建新的Uri
+   */
+  fun getUri(index: Int): Uri = ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, getId(index))
+
+  fun getTitle(index: Int): String {
+    checkIndex(index)
+    return String(names, nameOffsets[index * 2], nameOffsets[index * 2 + 1] - nameOffsets[index * 2])
+  }
+
+  fun getDisplayName(index: Int): String {
+    checkIndex(index)
+    return String(names, nameOffsets[index * 2 + 1], nameOffsets[index * 2 + 2] - nameOffsets[index * 2 + 1])
+  }
+
+  /**
+   * 返回的 String 由所有行共享
+   */
+  fun getMimeType(index: Int): String = mimeTypes[mimeCodes[checkIndex(index)].toInt()]
+
+  fun getSize(index: Int): Long = sizes[checkIndex(index)]
+
+  fun getWidth(index: Int): Int = widths[checkIndex(index)]
+
+  fun getHeight(index: Int): Int = heights[checkIndex(index)]
+
+  fun getModified(index: Int): Long = modifieds[checkIndex(index)]
+
+  /**
+   * 查找id所在的行, 不存在时返回 -1
+   */
+  fun indexOf(id: Long): Int {
+    for (i in 0 until size) {
+      if (ids[i] == id) {
+        return i
+      }
+    }
+    return - 1
+  }
+
+  fun toEntity(index: Int): ImageMediaEntity {
+    return ImageMediaEntity(getId(index).toString(), getTitle(index), getDisplayName(index), getMimeType(index), getUri(index),
+      getSize(index), getWidth(index), getHeight(index), getModified(index))
+  }
+
+  fun toEntities(): List<ImageMediaEntity> = List(size) {toEntity(it)}
+
+  /**
+   * 追加一行, 名称和MIME类型直接从 Cursor.copyStringToBuffer 的缓冲区拷贝
+   */
+  internal fun add(
+    id: Long,
+    title: CharArrayBuffer,
+    displayName: CharArrayBuffer,
+    mimeType: CharArrayBuffer,
+    size: Long,
+    width: Int,
+    height: Int,
+    modified: Long
+  ) {
+    ensureCapacity(this.size + 1)
+    val index = this.size
+    ids[index] = id
+    sizes[index] = size
+    modifieds[index] = modified
+    widths[index] = width
+    heights[index] = height
+    mimeCodes[index] = getMimeCode(mimeType).toByte()
+    nameOffsets[index * 2] = nameLength
+    appendName(title)
+    nameOffsets[index * 2 + 1] = nameLength
+    appendName(displayName)
+    nameOffsets[index * 2 + 2] = nameLength
+    this.size ++
+  }
+
+  private fun appendName(buffer: CharArrayBuffer) {
+    val length = buffer.sizeCopied
+    if (nameLength + length > names.size) {
+      names = names.copyOf(maxOf(names.size * 2, nameLength + length))
+    }
+    System.arraycopy(buffer.data, 0, names, nameLength, length)
+    nameLength += length
+  }
+
+  /**
+   * MIME 类型只有少数几种, 逐个比较, 不创建 String
+   */
+  private fun getMimeCode(buffer: CharArrayBuffer): Int {
+    val length = buffer.sizeCopied
+    for (i in mimeTypes.indices) {
+      if (contentEquals(mimeTypes[i], buffer.data, length)) {
+        return i
+      }
+    }
+    if (mimeTypes.size > Byte.MAX_VALUE) {
+      throw IllegalStateException("MIME 类型过多")
+    }
+    mimeTypes.add(String(buffer.data, 0, length))
+    return mimeTypes.size - 1
+  }
+
+  private fun contentEquals(value: String, chars: CharArray, length: Int): Boolean {
+    if (value.length != length) {
+      return false
+    }
+    for (i in 0 until length) {
+      if (value[i] != chars[i]) {
+        return false
+      }
+    }
+    return true
+  }
+
+  private fun ensureCapacity(capacity: Int) {
+    if (capacity <= ids.size) {
+      return
+    }
+    val grown = maxOf(capacity, ids.size * 2, 16)
+    ids = ids.copyOf(grown)
+    sizes = sizes.copyOf(grown)
+    modifieds = modifieds.copyOf(grown)
+    widths = widths.copyOf(grown)
+    heights = heights.copyOf(grown)
+    mimeCodes = mimeCodes.copyOf(grown)
+    nameOffsets = nameOffsets.copyOf(grown * 2 + 1)
+  }
+
+  private fun checkIndex(index: Int): Int {
+    if (index < 0 || index >= size) {
+      throw IndexOutOfBoundsException("index: $index, size: $size")
+    }
+    return index
+  }
+
+  override fun toString(): String {
+    return "ImageMediaTable(size=$size, mimeTypes=$mimeTypes)"
+  }
+}
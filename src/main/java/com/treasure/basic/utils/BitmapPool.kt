@@ -0,0 +1,265 @@
+package com.treasure.basic.utils
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Paint
+import android.graphics.Rect
+import android.os.Build
+import java.util.TreeMap
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.max
+
+/**
+ * 全局Bitmap复用池
+ * 按 Config + 分配字节数 分组, 总字节数超过 [maxSize] 时按LRU淘汰;
+ * 取出的Bitmap可直接用作 BitmapFactory.Options.inBitmap 或 Canvas 绘制目标
+ *
+ * 使用完毕的Bitmap通过 [put] 放回, 不要再调用 recycle
+ */
+object BitmapPool {
+
+  private const val MAX_SIZE_MULTIPLE = 4 //复用的Bitmap最多为需要大小的4倍, 避免大图被小图占用
+
+  private val groups = LinkedHashMap<Key, ArrayDeque<Bitmap>>(16, 0.75f, true)
+  private val sizes = HashMap<Bitmap.Config, TreeMap<Int, Int>>()
+
+  /**
+   * 池的字节上限, 默认为最大堆内存的1/8
+   */
+  @Volatile
+  @JvmStatic
+  var maxSize: Long = Runtime.getRuntime().maxMemory() / 8
+    set(value) {
+      field = value
+      synchronized(this) {
+        trimToSize(value)
+      }
+    }
+
+  @Volatile
+  @JvmStatic
+  var currentSize = 0L
+    private set
+
+  private val hits = AtomicLong()
+  private val misses = AtomicLong()
+  private val puts = AtomicLong()
+  private val evictions = AtomicLong()
+
+  @JvmStatic
+  val hitCount: Long
+    get() = hits.get()
+
+  @JvmStatic
+  val missCount: Long
+    get() = misses.get()
+
+  @JvmStatic
+  val putCount: Long
+    get() = puts.get()
+
+  @JvmStatic
+  val evictionCount: Long
+    get() = evictions.get()
+
+  /**
+   * 取出一个可以容纳 width*height 的可变Bitmap, 已经调整为要求的尺寸
+   * @return 池中没有合适的Bitmap时返回null
+   */
+  @JvmStatic
+  @Synchronized
+  fun get(width: Int, height: Int, config: Bitmap.Config): Bitmap? {
+    val bitmap = take(getByteSize(width, height, config), config)
+    if (bitmap == null) {
+      misses.incrementAndGet()
+      return null
+    }
+    hits.incrementAndGet()
+    bitmap.reconfigure(width, height, config)
+    bitmap.setHasAlpha(config != Bitmap.Config.RGB_565)
+    return bitmap
+  }
+
+  /**
+   * 取出一个Bitmap, 池中没有时新建
+   */
+  @JvmStatic
+  fun getOrCreate(width: Int, height: Int, config: Bitmap.Config): Bitmap {
+    return get(width, height, config) ?: Bitmap.createBitmap(width, height, config)
+  }
+
+  /**
+   * 放回Bitmap, 不可复用或超过上限时直接recycle; 同时归还绑定在Bitmap上的 [DecodeMemoryGovernor] 预算
+   */
+  @JvmStatic
+  @Synchronized
+  fun put(bitmap: Bitmap?) {
+    if (bitmap == null || bitmap.isRecycled) {
+      return
+    }
+    DecodeMemoryGovernor.release(bitmap)
+    val config = bitmap.config
+    val size = bitmap.allocationByteCount
+    if (! bitmap.isMutable || config == null || isHardware(config) || size > maxSize) {
+      bitmap.recycle()
+      return
+    }
+    val key = Key(config, size)
+    groups.getOrPut(key) {ArrayDeque()}.addLast(bitmap)
+    val configSizes = sizes.getOrPut(config) {TreeMap()}
+    configSizes[size] = (configSizes[size] ?: 0) + 1
+    currentSize += size
+    puts.incrementAndGet()
+    trimToSize(maxSize)
+  }
+
+  /**
+   * 为解码参数设置 inBitmap, 解码前调用
+   * 解码失败时应清空 inBitmap 后重试一次, 参考 [decodeWithPool]
+   */
+  @JvmStatic
+  fun applyInBitmap(options: BitmapFactory.Options, width: Int, height: Int) {
+    val sampleSize = options.inSampleSize.coerceAtLeast(1)
+    //采样后的尺寸向上取整, 保证空间足够
+    val sampledWidth = (width + sampleSize - 1) / sampleSize
+    val sampledHeight = (height + sampleSize - 1) / sampleSize
+    val config = options.inPreferredConfig ?: Bitmap.Config.ARGB_8888
+    options.inMutable = true
+    options.inBitmap = get(sampledWidth, sampledHeight, config)
+  }
+
+  /**
+   * BitmapRegionDecoder 采样后的尺寸, 向下取整且不小于1
+   * inBitmap 比解码结果大时 BitmapRegionDecoder 只填充左上角, 不会缩小 inBitmap, 分块解码需要按这个尺寸取Bitmap和绘制
+   */
+  @JvmStatic
+  fun getRegionSampledSize(size: Int, sampleSize: Int): Int {
+    return max(1, size / sampleSize.coerceAtLeast(1))
+  }
+
+  /**
+   * 使用池中的Bitmap解码, inBitmap 不可用(抛出异常或返回null)时退回普通解码
+   * @param width 原图宽, 来自 inJustDecodeBounds
+   * @param height 原图高, 来自 inJustDecodeBounds
+   */
+  inline fun decodeWithPool(options: BitmapFactory.Options, width: Int, height: Int, decode: (BitmapFactory.Options) -> Bitmap?): Bitmap? {
+    applyInBitmap(options, width, height)
+    return decodeWithInBitmap(options, decode)
+  }
+
+  /**
+   * 使用已经设置好的 inBitmap 解码, inBitmap 不可用(抛出异常或返回null)时放回池中并退回普通解码
+   */
+  inline fun decodeWithInBitmap(options: BitmapFactory.Options, decode: (BitmapFactory.Options) -> Bitmap?): Bitmap? {
+    val inBitmap = options.inBitmap
+    val bitmap = try {
+      decode(options)
+    } catch (e: IllegalArgumentException) {
+      //格式不支持复用
+      options.inBitmap = null
+      put(inBitmap)
+      return decode(options)
+    }
+    if (bitmap == null && inBitmap != null) {
+      //decodeFile 等方法会自己捕获 inBitmap 不可复用的异常并返回null, 放回后不带 inBitmap 再解码一次
+      options.inBitmap = null
+      put(inBitmap)
+      return decode(options)
+    }
+    return bitmap
+  }
+
+  /**
+   * 缩放Bitmap, 结果Bitmap从池中获取, 等同于 Bitmap.createScaledBitmap(src, width, height, true)
+   */
+  @JvmStatic
+  fun createScaledBitmap(src: Bitmap, width: Int, height: Int): Bitmap {
+    val dst = getOrCreate(width, height, getSafeConfig(src))
+    dst.eraseColor(Color.TRANSPARENT)
+    Canvas(dst).drawBitmap(src, null, Rect(0, 0, width, height), Paint(Paint.FILTER_BITMAP_FLAG))
+    return dst
+  }
+
+  /**
+   * 裁剪Bitmap, 结果Bitmap从池中获取, 等同于 Bitmap.createBitmap(src, x, y, width, height)
+   */
+  @JvmStatic
+  fun createBitmap(src: Bitmap, x: Int, y: Int, width: Int, height: Int): Bitmap {
+    val dst = getOrCreate(width, height, getSafeConfig(src))
+    dst.eraseColor(Color.TRANSPARENT)
+    Canvas(dst).drawBitmap(src, Rect(x, y, x + width, y + height), Rect(0, 0, width, height), null)
+    return dst
+  }
+
+  /**
+   * 清空池
+   */
+  @JvmStatic
+  @Synchronized
+  fun clear() {
+    trimToSize(0)
+  }
+
+  override fun toString(): String {
+    return "BitmapPool(size=$currentSize/$maxSize, hit=$hitCount, miss=$missCount, put=$putCount, eviction=$evictionCount)"
+  }
+
+  private fun take(size: Int, config: Bitmap.Config): Bitmap? {
+    val configSizes = sizes[config] ?: return null
+    val available = configSizes.ceilingKey(size) ?: return null
+    if (available > size * MAX_SIZE_MULTIPLE) {
+      return null
+    }
+    val bitmap = groups[Key(config, available)]?.removeLastOrNull() ?: return null
+    decrement(configSizes, available)
+    currentSize -= available
+    return bitmap
+  }
+
+  private fun trimToSize(size: Long) {
+    val iterator = groups.entries.iterator()
+    while (currentSize > size && iterator.hasNext()) {
+      val (key, bitmaps) = iterator.next()
+      while (currentSize > size && bitmaps.isNotEmpty()) {
+        bitmaps.removeFirst().recycle()
+        decrement(sizes[key.config], key.size)
+        currentSize -= key.size
+        evictions.incrementAndGet()
+      }
+      if (bitmaps.isEmpty()) {
+        iterator.remove()
+      }
+    }
+  }
+
+  private fun decrement(configSizes: TreeMap<Int, Int>?, size: Int) {
+    val count = configSizes?.get(size) ?: return
+    if (count <= 1) {
+      configSizes.remove(size)
+    } else {
+      configSizes[size] = count - 1
+    }
+  }
+
+  private fun getByteSize(width: Int, height: Int, config: Bitmap.Config): Int {
+    val bytesPerPixel = when(config) {
+      Bitmap.Config.ALPHA_8 -> 1
+      Bitmap.Config.RGB_565, Bitmap.Config.ARGB_4444 -> 2
+      else -> if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && config == Bitmap.Config.RGBA_F16) 8 else 4
+    }
+    return width * height * bytesPerPixel
+  }
+
+  private fun getSafeConfig(src: Bitmap): Bitmap.Config {
+    val config = src.config
+    return if (config == null || isHardware(config)) Bitmap.Config.ARGB_8888 else config
+  }
+
+  private fun isHardware(config: Bitmap.Config): Boolean {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && config == Bitmap.Config.HARDWARE
+  }
+
+  private data class Key(val config: Bitmap.Config, val size: Int)
+}
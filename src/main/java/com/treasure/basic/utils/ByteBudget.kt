@@ -0,0 +1,185 @@
+package com.treasure.basic.utils
+
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlin.coroutines.resume
+
+/**
+ * 按字节数计量的挂起式信号量
+ * 预算不足时调用方按先后顺序挂起等待, 直到其他调用方释放; 单次申请超过总预算时按总预算计, 即独占
+ */
+class ByteBudget(capacity: Long) {
+
+  private val lock = Any()
+  private val waiters = ArrayDeque<Waiter>()
+
+  /**
+   * 总预算
+   */
+  var capacity: Long = capacity
+    private set
+
+  /**
+   * 已占用字节数
+   */
+  var used = 0L
+    private set
+
+  /**
+   * 占用峰值
+   */
+  var peak = 0L
+    private set
+
+  /**
+   * 需要等待的申请次数
+   */
+  var waitCount = 0L
+    private set
+
+  /**
+   * [acquireNow] 超出总预算的次数
+   */
+  var overCommitCount = 0L
+    private set
+
+  /**
+   * 正在等待的调用方数量
+   */
+  val waiting: Int
+    get() = synchronized(lock) {waiters.size}
+
+  /**
+   * 申请预算, 不足时挂起
+   * @return 实际占用的字节数, 释放时传给 [release]
+   */
+  suspend fun acquire(bytes: Long): Long {
+    val waiter = synchronized(lock) {
+      val amount = bytes.coerceIn(0L, capacity)
+      if (waiters.isEmpty() && used + amount <= capacity) {
+        grant(amount)
+        return amount
+      }
+      waitCount ++
+      Waiter(amount).also {waiters.addLast(it)}
+    }
+    try {
+      suspendCancellableCoroutine<Unit> {cont ->
+        val granted = synchronized(lock) {
+          waiter.continuation = cont
+          waiter.granted
+        }
+        if (granted) {
+          cont.resume(Unit)
+        }
+      }
+    } catch (e: CancellationException) {
+      //取消时可能已经分配到预算, 需要归还
+      val granted = synchronized(lock) {
+        if (! waiter.granted) {
+          waiters.remove(waiter)
+        }
+        waiter.granted
+      }
+      if (granted) {
+        release(waiter.amount)
+      } else {
+        drain()
+      }
+      throw e
+    }
+    return waiter.amount
+  }
+
+  /**
+   * 不挂起地申请预算
+   * @return 实际占用的字节数, 预算不足时返回 -1
+   */
+  fun tryAcquire(bytes: Long): Long {
+    synchronized(lock) {
+      val amount = bytes.coerceIn(0L, capacity)
+      if (waiters.isEmpty() && used + amount <= capacity) {
+        grant(amount)
+        return amount
+      }
+      return - 1
+    }
+  }
+
+  /**
+   * 立即占用预算, 不足时也会占用(可能超出总预算), 用于不能挂起的调用方
+   * @return 实际占用的字节数
+   */
+  fun acquireNow(bytes: Long): Long {
+    synchronized(lock) {
+      val amount = bytes.coerceAtLeast(0L)
+      if (used + amount > capacity) {
+        overCommitCount ++
+      }
+      grant(amount)
+      return amount
+    }
+  }
+
+  /**
+   * 释放通过 [acquire] 获得的预算
+   */
+  fun release(amount: Long) {
+    if (amount <= 0) {
+      return
+    }
+    synchronized(lock) {
+      used = (used - amount).coerceAtLeast(0L)
+    }
+    drain()
+  }
+
+  /**
+   * 调整总预算
+   */
+  fun resize(capacity: Long) {
+    synchronized(lock) {
+      this.capacity = capacity
+    }
+    drain()
+  }
+
+  /**
+   * 按顺序唤醒能够满足的等待者
+   */
+  private fun drain() {
+    val ready = mutableListOf<CancellableContinuation<Unit>>()
+    synchronized(lock) {
+      while (waiters.isNotEmpty()) {
+        val head = waiters.first()
+        val amount = head.amount.coerceAtMost(capacity)
+        if (used + amount > capacity && used > 0) {
+          break
+        }
+        waiters.removeFirst()
+        head.amount = amount
+        head.granted = true
+        grant(amount)
+        head.continuation?.let {ready.add(it)}
+      }
+    }
+    ready.forEach {it.resume(Unit)}
+  }
+
+  private fun grant(amount: Long) {
+    used += amount
+    if (used > peak) {
+      peak = used
+    }
+  }
+
+  override fun toString(): String {
+    return "ByteBudget(used=$used/$capacity, peak=$peak, waiting=$waiting, waitCount=$waitCount, overCommitCount=$overCommitCount)"
+  }
+
+  private class Waiter(var amount: Long) {
+    var granted = false
+    var continuation: CancellableContinuation<Unit>? = null
+  }
+}
@@ -0,0 +1,52 @@
+package com.treasure.basic.utils
+
+import java.io.OutputStream
+import java.nio.ByteBuffer
+
+/**
+ * 写入 [DirectBufferPool] 中直接缓冲区的输出流, 容量不足时换用更大的缓冲区
+ * 写入完成后通过 [toBuffer] 取出结果, 不再使用时放回 [DirectBufferPool]
+ */
+class ByteBufferOutputStream(initialCapacity: Int = 64 * 1024) : OutputStream() {
+
+  private var buffer: ByteBuffer? = DirectBufferPool.get(initialCapacity)
+
+  override fun write(b: Int) {
+    ensureCapacity(1).put(b.toByte())
+  }
+
+  override fun write(b: ByteArray, off: Int, len: Int) {
+    ensureCapacity(len).put(b, off, len)
+  }
+
+  /**
+   * 取出已写入的数据, position为0, limit为写入的字节数; 之后不能再写入
+   */
+  fun toBuffer(): ByteBuffer {
+    val result = buffer ?: throw IllegalStateException("已经取出或释放")
+    buffer = null
+    result.flip()
+    return result
+  }
+
+  /**
+   * 未取出结果时将缓冲区放回 [DirectBufferPool]
+   */
+  override fun close() {
+    DirectBufferPool.put(buffer)
+    buffer = null
+  }
+
+  private fun ensureCapacity(length: Int): ByteBuffer {
+    val current = buffer ?: throw IllegalStateException("已经取出或释放")
+    if (current.remaining() >= length) {
+      return current
+    }
+    val grown = DirectBufferPool.get(maxOf(current.capacity() * 2, current.position() + length))
+    current.flip()
+    grown.put(current)
+    DirectBufferPool.put(current)
+    buffer = grown
+    return grown
+  }
+}
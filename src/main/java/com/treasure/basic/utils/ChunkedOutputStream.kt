@@ -0,0 +1,41 @@
+package com.treasure.basic.utils
+
+import java.io.OutputStream
+
+/**
+ * 按固定大小分块回调的输出流, 写满一块时回调一次, [flush] 时回调剩余数据
+ */
+class ChunkedOutputStream(chunkSize: Int, private val callback: ImageChunkCallback) : OutputStream() {
+
+  private val chunk = ByteArray(chunkSize)
+  private var count = 0
+
+  override fun write(b: Int) {
+    chunk[count ++] = b.toByte()
+    if (count == chunk.size) {
+      flush()
+    }
+  }
+
+  override fun write(b: ByteArray, off: Int, len: Int) {
+    var offset = off
+    var remaining = len
+    while (remaining > 0) {
+      val length = minOf(remaining, chunk.size - count)
+      System.arraycopy(b, offset, chunk, count, length)
+      count += length
+      offset += length
+      remaining -= length
+      if (count == chunk.size) {
+        flush()
+      }
+    }
+  }
+
+  override fun flush() {
+    if (count > 0) {
+      callback.onChunk(chunk, 0, count)
+      count = 0
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package com.treasure.basic.utils
+
+import java.io.OutputStream
+
+/**
+ * 统计写入字节数的输出流, 用于计算编码后的体积
+ * @param out 不为空时数据转发到该流, 否则直接丢弃; 不会关闭 [out]
+ */
+class CountingOutputStream(private val out: OutputStream? = null) : OutputStream() {
+
+  var count = 0L
+    private set
+
+  override fun write(b: Int) {
+    out?.write(b)
+    count ++
+  }
+
+  override fun write(b: ByteArray, off: Int, len: Int) {
+    out?.write(b, off, len)
+    count += len
+  }
+
+  override fun flush() {
+    out?.flush()
+  }
+}
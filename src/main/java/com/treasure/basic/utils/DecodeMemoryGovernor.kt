@@ -0,0 +1,237 @@
+package com.treasure.basic.utils
+
+import android.app.ActivityManager
+import android.content.Context
+import android.content.pm.ApplicationInfo
+import android.graphics.Bitmap
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+
+/**
+ * 进程内所有图片解码共享的内存预算
+ * 解码前按估算的字节数申请预算, 预算不足时挂起等待; 预算可以绑定到解码出的Bitmap上,
+ * 在 [release]/[BitmapPool.put] 时归还. Bitmap.recycle 不会归还预算, 不放回池的Bitmap要调用 [release];
+ * 未归还就被GC的Bitmap由后台线程归还, 同时唤醒正在等待的调用方
+ *
+ * 预算默认为 ActivityManager.getMemoryClass 的1/2
+ */
+object DecodeMemoryGovernor {
+
+  private const val MB = 1024 * 1024L
+
+  private val budget: ByteBudget by lazy {ByteBudget(getDefaultCapacity())}
+  private val queue = ReferenceQueue<Bitmap>()
+  private val reservations = HashSet<Reservation>()
+  private val leakCollector: Thread by lazy {
+    Thread(::collectLeaks, "decode-memory-collector").apply {
+      isDaemon = true
+      start()
+    }
+  }
+
+  /**
+   * Bitmap未归还就被GC的次数
+   */
+  @Volatile
+  @JvmStatic
+  var leakCount = 0L
+    private set
+
+  /**
+   * 总预算
+   */
+  @JvmStatic
+  val capacity: Long
+    get() = budget.capacity
+
+  /**
+   * 已占用
+   */
+  @JvmStatic
+  val used: Long
+    get() = budget.used
+
+  @JvmStatic
+  val peak: Long
+    get() = budget.peak
+
+  /**
+   * 需要等待的申请次数
+   */
+  @JvmStatic
+  val waitCount: Long
+    get() = budget.waitCount
+
+  /**
+   * 不能挂起的调用方超出预算的次数
+   */
+  @JvmStatic
+  val overCommitCount: Long
+    get() = budget.overCommitCount
+
+  /**
+   * 调整总预算
+   */
+  @JvmStatic
+  fun resize(capacity: Long) {
+    budget.resize(capacity)
+  }
+
+  /**
+   * 申请预算, 不足时挂起
+   * @return 实际占用的字节数, 通过 [release] 或 [attach] 归还
+   */
+  suspend fun reserve(bytes: Long): Long {
+    return budget.acquire(bytes)
+  }
+
+  /**
+   * 不挂起地申请预算
+   * @return 实际占用的字节数, 预算不足时返回 -1
+   */
+  @JvmStatic
+  fun tryReserve(bytes: Long): Long {
+    return budget.tryAcquire(bytes)
+  }
+
+  /**
+   * 立即占用预算, 用于主线程等不能挂起的调用方, 预算不足时也会占用并计入 [overCommitCount]
+   */
+  @JvmStatic
+  fun reserveNow(bytes: Long): Long {
+    return budget.acquireNow(bytes)
+  }
+
+  /**
+   * 归还预算
+   */
+  @JvmStatic
+  fun release(amount: Long) {
+    budget.release(amount)
+  }
+
+  /**
+   * 将预算绑定到Bitmap上, 在 [release] 该Bitmap时归还
+   */
+  @JvmStatic
+  fun attach(bitmap: Bitmap, amount: Long) {
+    if (amount <= 0) {
+      return
+    }
+    leakCollector
+    synchronized(reservations) {
+      reservations.add(Reservation(bitmap, amount, queue))
+    }
+  }
+
+  /**
+   * 归还绑定到Bitmap上的预算, 没有绑定时不做任何事
+   */
+  @JvmStatic
+  fun release(bitmap: Bitmap) {
+    var amount = 0L
+    synchronized(reservations) {
+      if (reservations.isEmpty()) {
+        return
+      }
+      val iterator = reservations.iterator()
+      while (iterator.hasNext()) {
+        val reservation = iterator.next()
+        if (reservation.get() === bitmap) {
+          iterator.remove()
+          amount += reservation.amount
+        }
+      }
+    }
+    budget.release(amount)
+  }
+
+  /**
+   * 申请预算并执行解码, 预算绑定到解码结果上
+   */
+  suspend inline fun decode(bytes: Long, block: () -> Bitmap?): Bitmap? {
+    val amount = reserve(bytes)
+    val bitmap = try {
+      block()
+    } catch (e: Throwable) {
+      release(amount)
+      throw e
+    }
+    if (bitmap == null) {
+      release(amount)
+    } else {
+      attach(bitmap, amount)
+    }
+    return bitmap
+  }
+
+  /**
+   * 与 [decode] 相同, 用于不能挂起的调用方, 通过 [reserveNow] 占用预算
+   */
+  inline fun decodeNow(bytes: Long, block: () -> Bitmap?): Bitmap? {
+    val amount = reserveNow(bytes)
+    val bitmap = try {
+      block()
+    } catch (e: Throwable) {
+      release(amount)
+      throw e
+    }
+    if (bitmap == null) {
+      release(amount)
+    } else {
+      attach(bitmap, amount)
+    }
+    return bitmap
+  }
+
+  /**
+   * 在预算内执行, 结束后归还
+   */
+  suspend inline fun <T> withReservation(bytes: Long, block: () -> T): T {
+    val amount = reserve(bytes)
+    try {
+      return block()
+    } finally {
+      release(amount)
+    }
+  }
+
+  override fun toString(): String {
+    return "DecodeMemoryGovernor(budget=$budget, attached=${synchronized(reservations) {reservations.size}}, leakCount=$leakCount)"
+  }
+
+  /**
+   * 归还已经被GC的Bitmap上绑定的预算, 在后台线程阻塞等待, 不依赖新的申请触发
+   */
+  private fun collectLeaks() {
+    while (true) {
+      val reservation = try {
+        queue.remove() as? Reservation ?: continue
+      } catch (e: InterruptedException) {
+        
+        e.printStackTrace()
+        continue
+      }
+      val removed = synchronized(reservations) {reservations.remove(reservation)}
+      if (removed) {
+        leakCount ++
+        budget.release(reservation.amount)
+      }
+    }
+  }
+
+  private fun getDefaultCapacity(): Long {
+    return try {
+      val context = AppUtil.getAppContext()
+      val manager = context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
+      val largeHeap = context.applicationInfo.flags and ApplicationInfo.FLAG_LARGE_HEAP != 0
+      val memoryClass = if (largeHeap) manager.largeMemoryClass else manager.memoryClass
+      memoryClass * MB / 2
+    } catch (e: IllegalStateException) {
+      //未绑定Context
+      Runtime.getRuntime().maxMemory() / 4
+    }
+  }
+
+  private class Reservation(bitmap: Bitmap, val amount: Long, queue: ReferenceQueue<Bitmap>) : WeakReference<Bitmap>(bitmap, queue)
+}
@@ -0,0 +1,113 @@
+package com.treasure.basic.utils
+
+import java.nio.ByteBuffer
+import java.util.TreeMap
+
+/**
+ * 堆外 ByteBuffer 复用池
+ * 容量按2的幂取整后分组, 总字节数超过 [maxSize] 时丢弃放回的缓冲区;
+ * 直接缓冲区可以交给 NIO Channel / 网络库发送而无需再拷贝到Java堆
+ *
+ * 使用完毕的缓冲区通过 [put] 放回
+ */
+object DirectBufferPool {
+
+  private const val MIN_CAPACITY = 16 * 1024
+
+  private val buffers = TreeMap<Int, ArrayDeque<ByteBuffer>>()
+
+  /**
+   * 池的字节上限
+   */
+  @Volatile
+  @JvmStatic
+  var maxSize: Long = 8 * 1024 * 1024L
+    set(value) {
+      field = value
+      synchronized(this) {
+        trimToSize(value)
+      }
+    }
+
+  @JvmStatic
+  var currentSize = 0L
+    private set
+
+  @JvmStatic
+  var hitCount = 0L
+    private set
+
+  @JvmStatic
+  var missCount = 0L
+    private set
+
+  /**
+   * 取出一个容量不小于 [minCapacity] 的直接缓冲区, 已经clear
+   */
+  @JvmStatic
+  @Synchronized
+  fun get(minCapacity: Int): ByteBuffer {
+    val capacity = getCapacity(minCapacity)
+    val entry = buffers.ceilingEntry(capacity)
+    //最多复用2倍大小的缓冲区
+    if (entry != null && entry.key <= capacity * 2) {
+      val buffer = entry.value.removeLast()
+      if (entry.value.isEmpty()) {
+        buffers.remove(entry.key)
+      }
+      currentSize -= buffer.capacity()
+      hitCount ++
+      buffer.clear()
+      return buffer
+    }
+    missCount ++
+    return ByteBuffer.allocateDirect(capacity)
+  }
+
+  /**
+   * 放回缓冲区, 非直接缓冲区或超过上限时直接丢弃
+   */
+  @JvmStatic
+  @Synchronized
+  fun put(buffer: ByteBuffer?) {
+    if (buffer == null || ! buffer.isDirect || buffer.isReadOnly || buffer.capacity() > maxSize) {
+      return
+    }
+    buffers.getOrPut(buffer.capacity()) {ArrayDeque()}.addLast(buffer)
+    currentSize += buffer.capacity()
+    trimToSize(maxSize)
+  }
+
+  @JvmStatic
+  @Synchronized
+  fun clear() {
+    buffers.clear()
+    currentSize = 0L
+  }
+
+  /**
+   * 从最大的缓冲区开始丢弃
+   */
+  private fun trimToSize(size: Long) {
+    while (currentSize > size && buffers.isNotEmpty()) {
+      val entry = buffers.lastEntry()
+      val buffer = entry.value.removeLast()
+      if (entry.value.isEmpty()) {
+        buffers.remove(entry.key)
+      }
+      currentSize -= buffer.capacity()
+    }
+  }
+
+  private fun getCapacity(minCapacity: Int): Int {
+    if (minCapacity <= MIN_CAPACITY) {
+      return MIN_CAPACITY
+    }
+    val highest = Integer.highestOneBit(minCapacity)
+    return if (highest == minCapacity) minCapacity else highest shl 1
+  }
+
+  override fun toString(): String {
+    return "DirectBufferPool(size=$currentSize/$maxSize, hit=$hitCount, miss=$missCount)"
+  }
+}
@@ -0,0 +1,81 @@
+package com.treasure.basic.utils
+
+/**
+ * 按汉明距离组织的BK树, 用于查找相近的64位感知哈希
+ * 查询时只访问与目标距离可能不超过阈值的子树, 不需要逐个比较
+ */
+class HammingBkTree {
+
+  private var root: Node? = null
+
+  /**
+   * 已加入的id数量
+   */
+  var size = 0
+    private set
+
+  fun add(hash: Long, id: Long) {
+    size ++
+    val start = root
+    if (start == null) {
+      root = Node(hash, 0).also {it.ids.add(id)}
+      return
+    }
+    var node: Node = start
+    while (true) {
+      val distance = distance(node.hash, hash)
+      if (distance == 0) {
+        node.ids.add(id)
+        return
+      }
+      val children = node.children ?: ArrayList<Node>(2)
+      node.children = children
+      val child = children.firstOrNull {it.distance == distance}
+      if (child == null) {
+        children.add(Node(hash, distance).also {it.ids.add(id)})
+        return
+      }
+      node = child
+    }
+  }
+
+  /**
+   * 查找距离不超过 [maxDistance] 的所有id
+   */
+  fun search(hash: Long, maxDistance: Int): List<Long> {
+    val result = ArrayList<Long>()
+    val start = root ?: return result
+    val pending = ArrayDeque<Node>()
+    pending.addLast(start)
+    while (pending.isNotEmpty()) {
+      val node = pending.removeLast()
+      val distance = distance(node.hash, hash)
+      if (distance <= maxDistance) {
+        result.addAll(node.ids)
+      }
+      //三角不等式: 只有与当前节点距离在 [distance - max, distance + max] 之间的子树可能满足条件
+      node.children?.forEach {
+        if (it.distance >= distance - maxDistance && it.distance <= distance + maxDistance) {
+          pending.addLast(it)
+        }
+      }
+    }
+    return result
+  }
+
+  fun clear() {
+    root = null
+    size = 0
+  }
+
+  private class Node(val hash: Long, val distance: Int) {
+    val ids = ArrayList<Long>(1)
+    var children: ArrayList<Node>? = null
+  }
+
+  companion object {
+
+    @JvmStatic
+    fun distance(a: Long, b: Long): Int = java.lang.Long.bitCount(a xor b)
+  }
+}
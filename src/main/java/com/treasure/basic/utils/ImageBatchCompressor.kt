@@ -0,0 +1,87 @@
+package com.treasure.basic.utils
+
+import android.net.Uri
+import com.treasure.basic.entity.ImageBatchResult
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.io.File
+
+/**
+ * 批量图片压缩
+ * 并行数由核心数决定, 每张图片开始解码前按图片头估算的内存向 [DecodeMemoryGovernor] 申请, 预算不足时排队等待
+ */
+object ImageBatchCompressor {
+
+  /**
+   * 批量压缩, 按完成顺序返回结果, 单张失败不影响其他图片
+   * @param outputDir 输出目录, 为空时结果保存在内存中
+   * @param lowMemory 参考 [ImageCompressUtil.compress]
+   * @param format 输出格式
+   * @param useCache 使用 [ImageCompressCache], 重试时不再重复压缩
+   */
+  fun compress(
+    files: List<File>,
+    compressType: Int = ImageCompressUtil.TYPE_MIDDLE,
+    outputDir: File? = null,
+    fitBudget: Boolean = false,
+    lowMemory: Boolean = false,
+    format: ImageOutputFormat = ImageOutputFormat.JPEG,
+    useCache: Boolean = false
+  ): Flow<ImageBatchResult> {
+    return compressSources(files.map {ImageSource.of(it)}, compressType, outputDir, fitBudget, lowMemory, format, useCache)
+  }
+
+  /**
+   * 批量压缩 content Uri, 例如 [ImageMediaUtil.loadImages] 的结果, 无需先拷贝到缓存目录
+   */
+  @JvmName("compressUris")
+  fun compress(
+    uris: List<Uri>,
+    compressType: Int = ImageCompressUtil.TYPE_MIDDLE,
+    outputDir: File? = null,
+    fitBudget: Boolean = false,
+    lowMemory: Boolean = false,
+    format: ImageOutputFormat = ImageOutputFormat.JPEG,
+    useCache: Boolean = false
+  ): Flow<ImageBatchResult> {
+    return compressSources(uris.map {ImageSource.of(it)}, compressType, outputDir, fitBudget, lowMemory, format, useCache)
+  }
+
+  /**
+   * 参考 [compress], 可以混合本地文件和 content Uri
+   */
+  fun compressSources(
+    sources: List<ImageSource>,
+    compressType: Int = ImageCompressUtil.TYPE_MIDDLE,
+    outputDir: File? = null,
+    fitBudget: Boolean = false,
+    lowMemory: Boolean = false,
+    format: ImageOutputFormat = ImageOutputFormat.JPEG,
+    useCache: Boolean = false
+  ): Flow<ImageBatchResult> = channelFlow {
+    val permits = Semaphore(ImageDispatchers.PARALLELISM)
+    sources.forEachIndexed {index, source ->
+      launch(ImageDispatchers.IMAGE) {
+        val item = permits.withPermit {
+          try {
+            //解码预算由 compress 内部申请, 命中缓存或直接使用原图时不占用
+            val output = outputDir?.let {File(it, "${index}_${source.name}.${format.resolve().extension}")}
+            val result = ImageCompressUtil.of(source, compressType).compress(output, fitBudget, lowMemory, format, useCache)
+            ImageBatchResult(index, source, result, null)
+          } catch (e: CancellationException) {
+            throw e
+          } catch (e: Exception) {
+            ImageBatchResult(index, source, null, e)
+          } catch (e: OutOfMemoryError) {
+            ImageBatchResult(index, source, null, e)
+          }
+        }
+        send(item)
+      }
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package com.treasure.basic.utils
+
+import android.database.ContentObserver
+import android.net.Uri
+import android.provider.MediaStore
+import com.treasure.basic.entity.BucketMediaEntity
+import kotlinx.coroutines.DelicateCoroutinesApi
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+
+/**
+ * 相册索引: 每个相册的图片数量、封面和最新修改时间
+ * 按修改时间倒序查询一次即可得到所有相册, 每个相册第一次出现的行就是封面; 结果保存在内存中,
+ * 通过 ContentObserver 监听媒体库变化后在后台重建, 再次打开相册列表时不需要查询
+ */
+object ImageBucketIndex {
+
+  private const val REFRESH_DELAY_MS = 500L //连续的变化只重建一次
+
+  private val projection = arrayOf(
+    MediaStore.Images.Media.BUCKET_ID,
+    MediaStore.Images.Media.BUCKET_DISPLAY_NAME,
+    MediaStore.Images.Media._ID,
+    MediaStore.Images.Media.DATE_MODIFIED
+  )
+
+  private val mutex = Mutex()
+  private val state = MutableStateFlow<List<BucketMediaEntity>?>(null)
+  private var observer: ContentObserver? = null
+  private var refreshJob: Job? = null
+
+  @JvmStatic
+  var buildCount = 0L
+    private set
+
+  /**
+   * 相册列表, 第一次构建完成前为空
+   */
+  @JvmStatic
+  val buckets: StateFlow<List<BucketMediaEntity>?>
+    get() = state.asStateFlow()
+
+  /**
+   * 获取相册列表, 已有结果时直接返回; 第一次查询成功时开始监听媒体库
+   * 查询失败(例如还没有存储权限)时返回空列表, 不缓存, 下次调用重新查询
+   */
+  suspend fun getBuckets(): List<BucketMediaEntity> {
+    state.value?.let {return it}
+    return mutex.withLock {
+      state.value ?: build()?.also {
+        state.value = it
+        register()
+      } ?: emptyList()
+    }
+  }
+
+  /**
+   * 停止监听并清空结果
+   */
+  @JvmStatic
+  @Synchronized
+  fun release() {
+    observer?.let {AppUtil.getAppContext().contentResolver.unregisterContentObserver(it)}
+    observer = null
+    refreshJob?.cancel()
+    refreshJob = null
+    state.value = null
+  }
+
+  /**
+   * 单次查询, 按修改时间倒序, 相册顺序为最新图片的顺序
+   * @return 查询失败时返回null
+   */
+  private suspend fun build(): List<BucketMediaEntity>? = withContext(Dispatchers.IO) {
+    val builders = LinkedHashMap<String, Builder>()
+    try {
+      val order = "${MediaStore.Images.Media.DATE_MODIFIED} desc"
+      AppUtil.getAppContext().contentResolver.query(
+        MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection, ImageMediaUtil.getImageSelection(""),
+        ImageMediaUtil.getImageSelectionArgs(""), order
+      )?.use {cursor ->
+        val bucketIdColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.BUCKET_ID)
+        val bucketNameColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.BUCKET_DISPLAY_NAME)
+        val idColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID)
+        val modifiedColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_MODIFIED)
+        while (cursor.moveToNext()) {
+          val bucketId = cursor.getString(bucketIdColumn) ?: continue
+          val builder = builders[bucketId]
+          if (builder != null) {
+            builder.count ++
+          } else {
+            val bucketName = cursor.getString(bucketNameColumn) ?: continue
+            builders[bucketId] = Builder(bucketName, cursor.getLong(idColumn), cursor.getLong(modifiedColumn))
+          }
+        }
+      }
+    } catch (e: Exception) {
+      
+      e.printStackTrace()
+      return@withContext null
+    }
+    buildCount ++
+    return@withContext builders.map {(bucketId, builder) ->
+      BucketMediaEntity(bucketId, builder.name, builder.count, builder.coverId, builder.latestModified)
+    }
+  }
+
+  @Synchronized
+  private fun register() {
+    if (observer != null) {
+      return
+    }
+    val created = object : ContentObserver(null) {
+      override fun onChange(selfChange: Boolean, uri: Uri?) {
+        scheduleRefresh()
+      }
+    }
+    AppUtil.getAppContext().contentResolver.registerContentObserver(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, created)
+    observer = created
+  }
+
+  @OptIn(DelicateCoroutinesApi::class)
+  @Synchronized
+  private fun scheduleRefresh() {
+    refreshJob?.cancel()
+    refreshJob = GlobalScope.launch(Dispatchers.IO) {
+      delay(REFRESH_DELAY_MS)
+      mutex.withLock {
+        //查询失败时保留之前的结果
+        val buckets = build()
+        if (buckets != null && observer != null) {
+          state.value = buckets
+        }
+      }
+    }
+  }
+
+  private class Builder(val name: String, val coverId: Long, val latestModified: Long) {
+    var count = 1
+  }
+}
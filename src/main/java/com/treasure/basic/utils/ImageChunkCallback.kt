@@ -0,0 +1,12 @@
+package com.treasure.basic.utils
+
+/**
+ * 分块接收压缩结果, 在图片专用调度器的线程上回调
+ */
+fun interface ImageChunkCallback {
+
+  /**
+   * @param data 只在回调期间有效, 之后会被复用
+   */
+  fun onChunk(data: ByteArray, offset: Int, length: Int)
+}
@@ -0,0 +1,228 @@
+package com.treasure.basic.utils
+
+import com.treasure.basic.entity.ImageCompressResult
+import java.io.File
+import java.io.IOException
+import java.security.MessageDigest
+
+/**
+ * 图片压缩结果的磁盘缓存
+ * 以原图路径、大小、修改时间和压缩参数作为key, 缓存压缩结果及其元数据; 总大小超过 [maxSize] 时按LRU淘汰
+ * 索引在第一次使用时从缓存目录加载
+ */
+object ImageCompressCache {
+
+  private const val DIR_NAME = "compress"
+  private const val DATA_SUFFIX = ".data"
+  private const val META_SUFFIX = ".meta"
+
+  private val dir: File by lazy {FileUtil.getExternalCacheDir(DIR_NAME)}
+
+  //按访问顺序排列, 第一个为最久未使用
+  private var index: LinkedHashMap<String, Entry>? = null
+  private var currentSize = 0L
+
+  /**
+   * 缓存上限, 默认64MB
+   */
+  @JvmStatic
+  var maxSize = 64 * 1024 * 1024L
+    set(value) {
+      field = value
+      synchronized(this) {
+        trimToSize(value)
+      }
+    }
+
+  @Volatile
+  @JvmStatic
+  var hitCount = 0L
+    private set
+
+  @Volatile
+  @JvmStatic
+  var missCount = 0L
+    private set
+
+  /**
+   * 生成缓存key
+   */
+  @JvmStatic
+  fun getKey(source: File, vararg params: Any): String {
+    return getKey(source.absolutePath, source.length(), source.lastModified(), *params)
+  }
+
+  /**
+   * 生成缓存key
+   * @param identity 原图的绝对路径或Uri
+   */
+  @JvmStatic
+  fun getKey(identity: String, size: Long, modified: Long, vararg params: Any): String {
+    val raw = buildString {
+      append(identity).append('|').append(size).append('|').append(modified)
+      params.forEach {append('|').append(it)}
+    }
+    return MessageDigest.getInstance("MD5").digest(raw.toByteArray()).joinToString("") {"%02x".format(it)}
+  }
+
+  /**
+   * 读取缓存, 不解码图片
+   * @param source 原图, 缓存的结果为"无需压缩"时直接返回原图
+   * @param outputFile 不为空时将缓存内容拷贝到该文件, 否则读取到内存
+   */
+  @JvmStatic
+  @Synchronized
+  fun get(key: String, source: File?, outputFile: File?): ImageCompressResult? {
+    //持有锁读取数据文件, 避免同时被 trimToSize 删除
+    val entry = loadIndex()[key]
+    if (entry == null || (entry.original && source == null)) {
+      missCount ++
+      return null
+    }
+    try {
+      val result = if (entry.original) {
+        ImageCompressResult(source, null, entry.width, entry.height, entry.quality, entry.mimeType, emptyMap())
+      } else {
+        val data = getDataFile(key)
+        data.setLastModified(System.currentTimeMillis())
+        if (outputFile != null) {
+          data.copyTo(outputFile, true)
+          ImageCompressResult(outputFile, null, entry.width, entry.height, entry.quality, entry.mimeType, emptyMap())
+        } else {
+          ImageCompressResult(null, data.readBytes(), entry.width, entry.height, entry.quality, entry.mimeType, emptyMap())
+        }
+      }
+      hitCount ++
+      return result
+    } catch (e: IOException) {
+      e.printStackTrace()
+      remove(key)
+      missCount ++
+      return null
+    }
+  }
+
+  /**
+   * 写入缓存
+   * @param source 原图, 结果为原图时只记录元数据
+   */
+  @JvmStatic
+  fun put(key: String, source: File?, result: ImageCompressResult) {
+    val original = source != null && result.file == source
+    val data = getDataFile(key)
+    try {
+      when {
+        original -> data.delete()
+        result.bytes != null -> data.writeBytes(result.bytes)
+        result.file != null -> result.file.copyTo(data, true)
+        else -> return
+      }
+      val entry = Entry(result.width, result.height, result.quality, result.mimeType, original, if (original) 0L else data.length())
+      getMetaFile(key).writeText(entry.encode())
+      synchronized(this) {
+        val index = loadIndex()
+        index.remove(key)?.let {currentSize -= it.size}
+        index[key] = entry
+        currentSize += entry.size
+        trimToSize(maxSize)
+      }
+    } catch (e: IOException) {
+      e.printStackTrace()
+      remove(key)
+    }
+  }
+
+  @JvmStatic
+  fun remove(key: String) {
+    synchronized(this) {
+      loadIndex().remove(key)?.let {currentSize -= it.size}
+    }
+    getDataFile(key).delete()
+    getMetaFile(key).delete()
+  }
+
+  @JvmStatic
+  fun clear() {
+    synchronized(this) {
+      trimToSize(- 1)
+    }
+  }
+
+  private fun trimToSize(size: Long) {
+    val index = loadIndex()
+    val iterator = index.entries.iterator()
+    while (currentSize > size && iterator.hasNext()) {
+      val (key, entry) = iterator.next()
+      iterator.remove()
+      currentSize -= entry.size
+      getDataFile(key).delete()
+      getMetaFile(key).delete()
+    }
+  }
+
+  /**
+   * 从缓存目录加载索引, 按数据文件的修改时间(即最后访问时间)排序
+   */
+  private fun loadIndex(): LinkedHashMap<String, Entry> {
+    index?.let {return it}
+    val loaded = LinkedHashMap<String, Entry>(64, 0.75f, true)
+    currentSize = 0L
+    dir.listFiles {file -> file.name.endsWith(META_SUFFIX)}
+      ?.mapNotNull {meta ->
+        val key = meta.name.removeSuffix(META_SUFFIX)
+        val entry = try {
+          Entry.decode(meta.readText())
+        } catch (e: IOException) {
+          null
+        }
+        val data = getDataFile(key)
+        if (entry == null || (! entry.original && ! data.exists())) {
+          meta.delete()
+          data.delete()
+          null
+        } else {
+          Triple(key, entry, if (entry.original) meta.lastModified() else data.lastModified())
+        }
+      }
+      ?.sortedBy {it.third}
+      ?.forEach {(key, entry) ->
+        loaded[key] = entry
+        currentSize += entry.size
+      }
+    index = loaded
+    return loaded
+  }
+
+  private fun getDataFile(key: String) = File(dir, key + DATA_SUFFIX)
+
+  private fun getMetaFile(key: String) = File(dir, key + META_SUFFIX)
+
+  private class Entry(
+    val width: Int,
+    val height: Int,
+    val quality: Int,
+    val mimeType: String?,
+    val original: Boolean,
+    val size: Long
+  ) {
+
+    fun encode() = "$width,$height,$quality,${mimeType ?: ""},$original,$size"
+
+    companion object {
+      fun decode(text: String): Entry? {
+        val parts = text.trim().split(',')
+        if (parts.size != 6) {
+          return null
+        }
+        return Entry(
+          parts[0].toIntOrNull() ?: return null,
+          parts[1].toIntOrNull() ?: return null,
+          parts[2].toIntOrNull() ?: return null,
+          parts[3].ifEmpty {null},
+          parts[4].toBoolean(),
+          parts[5].toLongOrNull() ?: return null
+        )
+      }
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.treasure.basic.utils
+
+import com.treasure.basic.entity.ImageCompressMetrics
+import com.treasure.basic.entity.ImageCompressResult
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * 将压缩统计汇总为直方图, 用于上报
+ * 桶按2的幂划分: 第0个桶为0, 第i个桶为 [2^(i-1), 2^i), 最后一个桶包含所有更大的值
+ * 耗时单位为ms, 体积单位为KB
+ */
+class ImageCompressHistogram : ImageCompressMetricsListener {
+
+  companion object {
+    const val BUCKET_COUNT = 16
+  }
+
+  private val stageCount = ImageCompressResult.Stage.values().size
+  private val wallTimes = AtomicLongArray(stageCount * BUCKET_COUNT)
+  private val cpuTimes = AtomicLongArray(stageCount * BUCKET_COUNT)
+  private val outputSizes = AtomicLongArray(BUCKET_COUNT)
+  private val totalTimes = AtomicLongArray(BUCKET_COUNT)
+  private val count = AtomicLong()
+  private val cacheHits = AtomicLong()
+
+  override fun onCompressed(metrics: ImageCompressMetrics) {
+    count.incrementAndGet()
+    if (metrics.cacheHit) {
+      cacheHits.incrementAndGet()
+    }
+    var total = 0L
+    metrics.stages.forEach {(stage, metric) ->
+      wallTimes.incrementAndGet(stage.ordinal * BUCKET_COUNT + bucketOf(metric.wallTime))
+      cpuTimes.incrementAndGet(stage.ordinal * BUCKET_COUNT + bucketOf(metric.cpuTime))
+      total += metric.wallTime
+    }
+    totalTimes.incrementAndGet(bucketOf(total))
+    outputSizes.incrementAndGet(bucketOf(metrics.outputBytes / 1024))
+  }
+
+  /**
+   * 压缩次数
+   */
+  fun getCount() = count.get()
+
+  fun getCacheHitCount() = cacheHits.get()
+
+  fun getWallTimeHistogram(stage: ImageCompressResult.Stage) = slice(wallTimes, stage.ordinal)
+
+  fun getCpuTimeHistogram(stage: ImageCompressResult.Stage) = slice(cpuTimes, stage.ordinal)
+
+  fun getTotalTimeHistogram() = slice(totalTimes, 0)
+
+  fun getOutputSizeHistogram() = slice(outputSizes, 0)
+
+  /**
+   * 按直方图估算百分位, 返回所在桶的上界
+   * @param percentile 0~100
+   */
+  fun getPercentile(histogram: LongArray, percentile: Int): Long {
+    val total = histogram.sum()
+    if (total == 0L) {
+      return 0L
+    }
+    val target = (total * percentile + 99) / 100
+    var accumulated = 0L
+    histogram.forEachIndexed {index, value ->
+      accumulated += value
+      if (accumulated >= target) {
+        return if (index == 0) 0L else 1L shl index
+      }
+    }
+    return 1L shl (BUCKET_COUNT - 1)
+  }
+
+  fun reset() {
+    for (i in 0 until wallTimes.length()) {
+      wallTimes.set(i, 0)
+      cpuTimes.set(i, 0)
+    }
+    for (i in 0 until BUCKET_COUNT) {
+      outputSizes.set(i, 0)
+      totalTimes.set(i, 0)
+    }
+    count.set(0)
+    cacheHits.set(0)
+  }
+
+  override fun toString(): String {
+    return buildString {
+      append("ImageCompressHistogram(count=").append(getCount()).append(", cacheHit=").append(getCacheHitCount())
+      append(", total p50=").append(getPercentile(getTotalTimeHistogram(), 50))
+      append(" p90=").append(getPercentile(getTotalTimeHistogram(), 90))
+      ImageCompressResult.Stage.values().forEach {
+        val histogram = getWallTimeHistogram(it)
+        append(", ").append(it).append(" p50=").append(getPercentile(histogram, 50))
+        append(" p90=").append(getPercentile(histogram, 90))
+      }
+      append(")")
+    }
+  }
+
+  private fun bucketOf(value: Long): Int {
+    if (value <= 0) {
+      return 0
+    }
+    return (64 - java.lang.Long.numberOfLeadingZeros(value)).coerceAtMost(BUCKET_COUNT - 1)
+  }
+
+  private fun slice(array: AtomicLongArray, row: Int): LongArray {
+    return LongArray(BUCKET_COUNT) {array.get(row * BUCKET_COUNT + it)}
+  }
+}
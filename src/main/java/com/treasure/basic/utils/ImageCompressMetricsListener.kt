@@ -0,0 +1,12 @@
+package com.treasure.basic.utils
+
+import com.treasure.basic.entity.ImageCompressMetrics
+
+/**
+ * 图片压缩统计回调, 在压缩线程中调用, 不要做耗时操作
+ * 通过 ImageCompressUtil.metricsListener 设置
+ */
+fun interface ImageCompressMetricsListener {
+
+  fun onCompressed(metrics: ImageCompressMetrics)
+}
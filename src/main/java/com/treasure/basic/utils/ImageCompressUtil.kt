@@ -3,12 +3,31 @@ package com.treasure.basic.utils
 import android.content.Context
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
-import android.graphics.Matrix
+import android.graphics.Canvas
+import android.graphics.ImageDecoder
+import android.graphics.Paint
+import android.graphics.Rect
+import android.net.Uri
+import android.os.Build
+import android.os.Debug
+import android.os.SystemClock
+import androidx.annotation.RequiresApi
+import com.treasure.basic.entity.ImageCompressMetrics
+import com.treasure.basic.entity.ImageCompressResult
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.withContext
 import java.io.File
-import java.io.FileNotFoundException
-import java.io.FileOutputStream
 import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.EnumMap
+import kotlin.coroutines.coroutineContext
+import kotlin.math.max
 import kotlin.math.min
+import kotlin.math.roundToInt
 
 /**
  *  Time : 2020/4/1
@@ -18,30 +37,750 @@ import kotlin.math.min
  *  分辨率和文件大小都要处理的情况:
  *  1->获取原图bitmap option 看是否符合要求,不符合则压缩到与临界值最近且大于临界值的值
  *  2->采用矩阵缩放bitmap到要求的尺寸
- *  3->将修改的bitmap写入文件看看大小是否符合要求
+ *  3->将修改的bitmap编码到内存看看大小是否符合要求
  *  4->将不符合要求的再进行质量压缩
+ *
+ *  构造函数会在当前线程同步执行上述流程; 在主线程使用时请改用 [of] + [compress]
  */
-class ImageCompressUtil(val file: File, private val compressType: Int = TYPE_MIDDLE) {
+class ImageCompressUtil private constructor(val source: ImageSource, private val compressType: Int, eager: Boolean) {
+
+  constructor(file: File, compressType: Int = TYPE_MIDDLE) : this(ImageSource.of(file), compressType, true)
+
+  /**
+   * 原图文件, 只有通过 File 创建的实例可以访问; Uri 来源请使用 [source]
+   * @throws IllegalStateException Uri 来源没有本地文件
+   */
+  val file: File
+    get() = source.file ?: throw IllegalStateException("Uri 来源没有本地文件: $source")
 
   companion object {
     const val TYPE_MIN = 0
     const val TYPE_MIDDLE = 1
-    private const val COPY_NAME = "/compress_copy.jpg"
     private const val MIN_SIZE = 300 //缩略图临界尺寸
     private const val MIDDLE_SIZE = 1080 //中图临界尺寸
     private const val COMPRESS_RATIO = 50 //96时图片体积为之前的一半
     private const val NOT_COMPRESS = 1000
     private const val THIRTY_KB = 30 * 1024L
     private const val ONE_HUNDRED_KB = 100 * 1024L
+    private const val MIN_QUALITY = 30 //目标体积模式的最低质量
+    private const val MAX_QUALITY = 95 //目标体积模式搜索的最高质量, 100已单独尝试
+    private const val MAX_ENCODE_ATTEMPTS = 8 //目标体积模式的最大编码次数
+    private const val TILE_SIZE = 1024 //分块解码时每块解码后的边长
+
+    /**
+     * 原图像素数超过该值时使用 BitmapRegionDecoder 分块解码, 峰值内存只与块大小和目标尺寸有关
+     */
+    @JvmStatic
+    var tiledDecodeThreshold = 24_000_000L
+
+    /**
+     * 直接使用原图时去掉JPEG中不需要的元数据(只保留方向和色彩配置), 逐段重写, 不解码像素
+     */
+    @JvmStatic
+    var stripJpegMetadata = true
+
+    /**
+     * 压缩统计回调, 可以使用 [ImageCompressHistogram] 汇总
+     */
+    @JvmStatic
+    var metricsListener: ImageCompressMetricsListener? = null
+
+    /**
+     * 创建一个构造时不执行压缩的实例, 通过 [compress] 在协程中异步压缩
+     */
+    @JvmStatic
+    fun of(file: File, compressType: Int = TYPE_MIDDLE) = ImageCompressUtil(ImageSource.of(file), compressType, false)
+
+    /**
+     * 直接压缩 content Uri, 通过文件描述符解码, 无需先拷贝到缓存目录
+     */
+    @JvmStatic
+    fun of(uri: Uri, compressType: Int = TYPE_MIDDLE) = ImageCompressUtil(ImageSource.of(uri), compressType, false)
+
+    @JvmStatic
+    fun of(source: ImageSource, compressType: Int = TYPE_MIDDLE) = ImageCompressUtil(source, compressType, false)
+
+    /**
+     * 一次解码生成多种尺寸的输出: 以最大的临界尺寸解码, 较小的尺寸由解码结果缩放得到, 内存允许时并行编码
+     * @param outputs key为压缩类型, value为输出文件, 为空时结果保存在内存中
+     * @return key为压缩类型
+     * @throws IOException 图片无法解析或写入失败
+     */
+    suspend fun compressMulti(
+      file: File,
+      outputs: Map<Int, File?> = mapOf(TYPE_MIDDLE to null, TYPE_MIN to null),
+      fitBudget: Boolean = false,
+      lowMemory: Boolean = false,
+      format: ImageOutputFormat = ImageOutputFormat.JPEG
+    ): Map<Int, ImageCompressResult> = compressMulti(ImageSource.of(file), outputs, fitBudget, lowMemory, format)
+
+    /**
+     * 参考 [compressMulti], 读取边框和解码复用同一个文件描述符
+     */
+    suspend fun compressMulti(
+      source: ImageSource,
+      outputs: Map<Int, File?> = mapOf(TYPE_MIDDLE to null, TYPE_MIN to null),
+      fitBudget: Boolean = false,
+      lowMemory: Boolean = false,
+      format: ImageOutputFormat = ImageOutputFormat.JPEG
+    ): Map<Int, ImageCompressResult> = withContext(ImageDispatchers.IMAGE) {
+      source.withDescriptor {
+        compressMultiInternal(source, outputs, fitBudget, lowMemory, format.resolve())
+      }
+    }
+
+    private suspend fun compressMultiInternal(
+      source: ImageSource,
+      outputs: Map<Int, File?>,
+      fitBudget: Boolean,
+      lowMemory: Boolean,
+      outputFormat: ImageOutputFormat
+    ): Map<Int, ImageCompressResult> {
+      val results = HashMap<Int, ImageCompressResult>()
+      val tasks = ArrayList<MultiTask>()
+      for ((type, outputFile) in outputs) {
+        val util = ImageCompressUtil(source, type, false)
+        val recorder = StageRecorder()
+        val options = util.timed(recorder, ImageCompressResult.Stage.BOUNDS) {util.readBounds(lowMemory)}
+        if (util.isOriginalAcceptable(options, outputFormat, recorder)) {
+          results[type] = util.originalResult(options, outputFile, null, recorder).also {util.report(recorder, options, it)}
+        } else {
+          tasks.add(MultiTask(type, util, options, outputFile, recorder))
+        }
+      }
+      if (tasks.isEmpty()) {
+        return results
+      }
+      coroutineContext.ensureActive()
+
+      tasks.sortByDescending {it.util.getTargetSize()}
+      val primary = tasks.first()
+      //解码过程中的峰值加上从解码结果缩放出的较小尺寸
+      val decodeBytes = primary.util.estimateDecodedBytes(primary.options) + tasks.sumOf {task ->
+        if (task === primary || task.options.inSampleSize == 1) 0L else task.util.estimateTargetBytes(task.options)
+      }
+      val decodeReserved = DecodeMemoryGovernor.reserve(decodeBytes)
+      val bitmaps = ArrayList<Bitmap>()
+      try {
+        val decoded = primary.util.decodeScaled(primary.options, primary.recorder)
+        bitmaps.add(decoded)
+        //较小的尺寸从解码结果缩放, 该尺寸不需要处理分辨率时解码结果就是原图像素
+        val encodeTasks = tasks.map {task ->
+          val bitmap = if (task === primary || task.options.inSampleSize == 1) {
+            decoded
+          } else {
+            task.util.timed(task.recorder, ImageCompressResult.Stage.SCALE) {task.util.scaleBitmap(decoded)}.also {
+              task.recorder.allocate(ImageCompressResult.Stage.SCALE, it.allocationByteCount.toLong())
+              bitmaps.add(it)
+            }
+          }
+          task to bitmap
+        }
+        coroutineContext.ensureActive()
+        //编码缓冲区按Bitmap大小的1/4估算
+        val reserved = if (encodeTasks.size > 1) {
+          DecodeMemoryGovernor.tryReserve(encodeTasks.sumOf {it.second.allocationByteCount.toLong()} / 4)
+        } else {
+          - 1L
+        }
+        val encoded = if (reserved >= 0) {
+          try {
+            coroutineScope {
+              encodeTasks.map {(task, bitmap) ->
+                async {task.type to task.encode(bitmap, fitBudget, outputFormat)}
+              }.awaitAll()
+            }
+          } finally {
+            DecodeMemoryGovernor.release(reserved)
+          }
+        } else {
+          encodeTasks.map {(task, bitmap) -> task.type to task.encode(bitmap, fitBudget, outputFormat)}
+        }
+        results.putAll(encoded)
+        tasks.forEach {task -> results[task.type]?.let {task.util.report(task.recorder, task.options, it)}}
+      } finally {
+        bitmaps.forEach {BitmapPool.put(it)}
+        DecodeMemoryGovernor.release(decodeReserved)
+      }
+      return results
+    }
+  }
+
+  private class MultiTask(
+    val type: Int,
+    val util: ImageCompressUtil,
+    val options: BitmapFactory.Options,
+    val outputFile: File?,
+    val recorder: StageRecorder
+  ) {
+
+    suspend fun encode(bitmap: Bitmap, fitBudget: Boolean, format: ImageOutputFormat): ImageCompressResult {
+      return util.encodeBitmap(bitmap, util.isOriginalPixels(options, format), outputFile, fitBudget, format, recorder)
+    }
+  }
+
+  /**
+   * 记录各阶段的耗时、CPU时间和产生的字节数
+   */
+  private class StageRecorder {
+    private val timings = EnumMap<ImageCompressResult.Stage, Long>(ImageCompressResult.Stage::class.java)
+    private val cpuTimes = EnumMap<ImageCompressResult.Stage, Long>(ImageCompressResult.Stage::class.java)
+    private val allocations = EnumMap<ImageCompressResult.Stage, Long>(ImageCompressResult.Stage::class.java)
+
+    fun record(stage: ImageCompressResult.Stage, wallTime: Long, cpuNanos: Long) {
+      timings[stage] = (timings[stage] ?: 0L) + wallTime
+      //threadCpuTimeNanos 不支持时返回 -1
+      cpuTimes[stage] = (cpuTimes[stage] ?: 0L) + (cpuNanos / 1_000_000).coerceAtLeast(0L)
+    }
+
+    /**
+     * 当前各阶段耗时的副本, 之后记录的阶段不影响已经创建的结果
+     */
+    fun snapshot(): Map<ImageCompressResult.Stage, Long> = EnumMap(timings)
+
+    fun allocate(stage: ImageCompressResult.Stage, bytes: Long) {
+      allocations[stage] = (allocations[stage] ?: 0L) + bytes
+    }
+
+    fun toMetrics(): Map<ImageCompressResult.Stage, ImageCompressMetrics.StageMetric> {
+      return timings.mapValues {(stage, wallTime) ->
+        ImageCompressMetrics.StageMetric(wallTime, cpuTimes[stage] ?: 0L, allocations[stage] ?: 0L)
+      }
+    }
   }
 
   var ratio = 100
   var bitmap: Bitmap? = null
 
   init {
-    bitmap = compressImageJava()
+    if (eager) {
+      bitmap = compressImageJava()
+    }
+  }
+
+  /**
+   * 在图片专用调度器上执行压缩, 每个阶段之间响应协程取消
+   * @param outputFile 输出文件, 为空时结果保存在 [ImageCompressResult.bytes]
+   * @param fitBudget 目标体积模式: 搜索不超过体积上限的最高质量, 代替固定的 [COMPRESS_RATIO]
+   * @param lowMemory 低内存模式: 不透明的图片(如相机拍摄的JPEG)使用 RGB_565 解码, 内存减半
+   * @param format 输出格式, 设备不支持时退回 JPEG
+   * @param useCache 使用 [ImageCompressCache], 同一张图片以相同参数再次压缩时不再解码
+   * @throws IOException 图片无法解析或写入失败
+   */
+  suspend fun compress(
+    outputFile: File? = null,
+    fitBudget: Boolean = false,
+    lowMemory: Boolean = false,
+    format: ImageOutputFormat = ImageOutputFormat.JPEG,
+    useCache: Boolean = false
+  ): ImageCompressResult = withContext(ImageDispatchers.IMAGE) {
+    source.withDescriptor {
+      val outputFormat = format.resolve()
+      val cacheKey = if (useCache) {
+        ImageCompressCache.getKey(source.identity, source.length(), source.lastModified(), compressType, outputFormat, fitBudget,
+          lowMemory, stripJpegMetadata)
+      } else {
+        null
+      }
+      if (cacheKey != null) {
+        ImageCompressCache.get(cacheKey, source.file, outputFile)?.let {
+          report(StageRecorder(), null, it)
+          return@withContext it
+        }
+      }
+      val result = compressInternal(outputFile, fitBudget, lowMemory, outputFormat)
+      if (cacheKey != null) {
+        ImageCompressCache.put(cacheKey, source.file, result)
+      }
+      result
+    }
+  }
+
+  /**
+   * 压缩并输出到调用方的输出流, 质量已确定时直接编码到 [out], 边编码边输出, 不经过临时文件和内存拷贝
+   * 不会关闭 [out]; 结果的 file 和 bytes 都为空, size 为写入的字节数
+   * @throws IOException 图片无法解析或写入失败
+   */
+  suspend fun compressTo(
+    out: OutputStream,
+    fitBudget: Boolean = false,
+    lowMemory: Boolean = false,
+    format: ImageOutputFormat = ImageOutputFormat.JPEG
+  ): ImageCompressResult = withContext(ImageDispatchers.IMAGE) {
+    source.withDescriptor {
+      compressInternal(null, fitBudget, lowMemory, format.resolve(), out)
+    }
+  }
+
+  /**
+   * 压缩并按 [chunkSize] 分块回调, 适合边压缩边上传
+   * @throws IOException 图片无法解析或写入失败
+   */
+  suspend fun compressTo(
+    callback: ImageChunkCallback,
+    chunkSize: Int = 16 * 1024,
+    fitBudget: Boolean = false,
+    lowMemory: Boolean = false,
+    format: ImageOutputFormat = ImageOutputFormat.JPEG
+  ): ImageCompressResult {
+    val out = ChunkedOutputStream(chunkSize, callback)
+    return compressTo(out, fitBudget, lowMemory, format).also {out.flush()}
+  }
+
+  /**
+   * 压缩到 [DirectBufferPool] 中的直接缓冲区, 结果在 [ImageCompressResult.buffer] 中,
+   * 使用完毕后通过 [DirectBufferPool.put] 放回
+   * @throws IOException 图片无法解析或写入失败
+   */
+  suspend fun compressToBuffer(
+    fitBudget: Boolean = false,
+    lowMemory: Boolean = false,
+    format: ImageOutputFormat = ImageOutputFormat.JPEG
+  ): ImageCompressResult {
+    val out = ByteBufferOutputStream()
+    try {
+      val result = compressTo(out, fitBudget, lowMemory, format)
+      return ImageCompressResult(null, null, result.width, result.height, result.quality, result.mimeType,
+        result.stageTimings, out.toBuffer())
+    } finally {
+      out.close()
+    }
+  }
+
+  /**
+   * @param out 不为空时输出到该流, 忽略 [outputFile]
+   */
+  private suspend fun compressInternal(
+    outputFile: File?,
+    fitBudget: Boolean,
+    lowMemory: Boolean,
+    outputFormat: ImageOutputFormat,
+    out: OutputStream? = null
+  ): ImageCompressResult {
+    val recorder = StageRecorder()
+    val options = timed(recorder, ImageCompressResult.Stage.BOUNDS) {readBounds(lowMemory)}
+    coroutineContext.ensureActive()
+
+    //分辨率不需要处理、体积符合要求且格式一致时直接使用原文件(只去掉元数据), 无需解码
+    val result = if (isOriginalAcceptable(options, outputFormat, recorder)) {
+      originalResult(options, outputFile, out, recorder)
+    } else {
+      DecodeMemoryGovernor.withReservation(estimateDecodedBytes(options)) {
+        val bitmap = decodeScaled(options, recorder)
+        try {
+          encodeBitmap(bitmap, isOriginalPixels(options, outputFormat), outputFile, fitBudget, outputFormat, recorder, out)
+        } finally {
+          BitmapPool.put(bitmap)
+        }
+      }
+    }
+    report(recorder, options, result)
+    return result
+  }
+
+  /**
+   * 原图直接作为输出: 本地文件直接返回原文件; content Uri 没有可用的文件或需要去掉JPEG元数据时,
+   * 拷贝到输出文件或读取到内存
+   * @param out 不为空时拷贝到该流
+   */
+  private fun originalResult(
+    options: BitmapFactory.Options,
+    outputFile: File?,
+    out: OutputStream?,
+    recorder: StageRecorder
+  ): ImageCompressResult {
+    val strip = stripJpegMetadata && JpegMetadataStripper.isJpeg(options.outMimeType) && hasStrippableMetadata()
+    val original = source.file
+    if (out == null && original != null && ! strip) {
+      return ImageCompressResult(original, null, options.outWidth, options.outHeight, 100, options.outMimeType, recorder.snapshot())
+    }
+    var file: File? = null
+    var bytes: ByteArray? = null
+    var length = 0L
+    timed(recorder, ImageCompressResult.Stage.WRITE) {
+      when {
+        out != null -> {
+          length = if (strip) {
+            //调用方的流无法回退, 先在内存中去掉元数据, 失败时原样拷贝
+            val buffer = ReusableByteArrayOutputStream(source.length().coerceIn(1024L, Int.MAX_VALUE.toLong()).toInt())
+            val stripped = try {
+              source.openInputStream().use {JpegMetadataStripper.strip(it, buffer)}
+              true
+            } catch (e: IOException) {
+              e.printStackTrace()
+              false
+            }
+            if (stripped) {
+              out.write(buffer.buffer(), 0, buffer.size())
+              buffer.size().toLong()
+            } else {
+              source.openInputStream().use {it.copyTo(out)}
+            }
+          } else {
+            source.openInputStream().use {it.copyTo(out)}
+          }
+          out.flush()
+        }
+        outputFile != null -> {
+          outputFile.parentFile?.mkdirs()
+          try {
+            outputFile.outputStream().use {output -> source.openInputStream().use {transferOriginal(it, output, strip)}}
+          } catch (e: IOException) {
+            if (! strip) throw e
+            //元数据无法解析时退回原样拷贝
+            outputFile.outputStream().use {output -> source.openInputStream().use {it.copyTo(output)}}
+          }
+          file = outputFile
+        }
+        else -> {
+          val buffer = ReusableByteArrayOutputStream(source.length().coerceIn(1024L, Int.MAX_VALUE.toLong()).toInt())
+          try {
+            source.openInputStream().use {transferOriginal(it, buffer, strip)}
+          } catch (e: IOException) {
+            if (! strip) throw e
+            buffer.reset()
+            source.openInputStream().use {it.copyTo(buffer)}
+          }
+          bytes = buffer.toByteArray()
+        }
+      }
+    }
+    //写入阶段记录完成后再创建结果, 结果中的耗时不再变化
+    return ImageCompressResult(file, bytes, options.outWidth, options.outHeight, 100, options.outMimeType, recorder.snapshot(),
+      null, length)
+  }
+
+  /**
+   * 只读取段头, 无法解析时按没有可去掉的元数据处理
+   */
+  private fun hasStrippableMetadata(): Boolean {
+    return try {
+      source.openInputStream().use {JpegMetadataStripper.measure(it)} > 0
+    } catch (e: IOException) {
+      false
+    }
+  }
+
+  private fun transferOriginal(input: InputStream, out: OutputStream, strip: Boolean): Long {
+    return if (strip) JpegMetadataStripper.strip(input, out) else input.copyTo(out)
+  }
+
+  /**
+   * 读取图片边框并计算采样参数
+   * @throws IOException 图片无法解析
+   */
+  private fun readBounds(lowMemory: Boolean): BitmapFactory.Options {
+    return BitmapFactory.Options().apply {
+      inJustDecodeBounds = true
+      source.decode(this)
+      if (outWidth <= 0 || outHeight <= 0) {
+        throw IOException("无法解析图片: $source")
+      }
+      compressPxOption(getTargetSize(), getTargetSize(), this, getDecodeConfig(this, lowMemory))
+    }
+  }
+
+  /**
+   * 分辨率不需要处理且格式一致, 即解码结果就是原图像素
+   */
+  private fun isOriginalPixels(options: BitmapFactory.Options, format: ImageOutputFormat): Boolean {
+    return options.inSampleSize == 1 && isSameFormat(options.outMimeType, format)
+  }
+
+  /**
+   * 原图是否可以直接作为输出
+   */
+  private fun isOriginalAcceptable(
+    options: BitmapFactory.Options,
+    format: ImageOutputFormat,
+    recorder: StageRecorder
+  ): Boolean {
+    if (! isOriginalPixels(options, format)) {
+      return false
+    }
+    return timed(recorder, ImageCompressResult.Stage.MEASURE) {
+      getCompressRatio(source.length(), options.outWidth, options.outHeight) == NOT_COMPRESS
+    }
+  }
+
+  /**
+   * 解码并缩放到临界尺寸
+   * 超大图分块解码; API 28 及以上直接解码到目标尺寸; 两者都不再需要矩阵缩放
+   * @return 使用完毕后放回 [BitmapPool]
+   */
+  private suspend fun decodeScaled(options: BitmapFactory.Options, recorder: StageRecorder): Bitmap {
+    var exact = options.inSampleSize != 1 && canDecodeToTarget()
+    val decoded = timed(recorder, ImageCompressResult.Stage.DECODE) {
+      //格式不支持分块解码时退回整图解码
+      val tiled = if (shouldDecodeTiled(options)) {
+        decodeTiled(options.outWidth, options.outHeight, options.inPreferredConfig)
+      } else {
+        null
+      }
+      if (tiled != null) {
+        exact = true
+        tiled
+      } else if (exact) {
+        decodeToTarget(options.inPreferredConfig == Bitmap.Config.RGB_565)
+      } else {
+        BitmapPool.decodeWithPool(options, options.outWidth, options.outHeight) {
+          source.decode(it)
+        } ?: throw IOException("图片解码失败: $source")
+      }
+    }
+    recorder.allocate(ImageCompressResult.Stage.DECODE, decoded.allocationByteCount.toLong())
+    if (options.inSampleSize == 1 || exact) {
+      return decoded
+    }
+    try {
+      coroutineContext.ensureActive()
+      return timed(recorder, ImageCompressResult.Stage.SCALE) {scaleBitmap(decoded)}.also {
+        recorder.allocate(ImageCompressResult.Stage.SCALE, it.allocationByteCount.toLong())
+      }
+    } finally {
+      BitmapPool.put(decoded)
+    }
+  }
+
+  /**
+   * 编码已缩放的Bitmap, 不会回收 [bitmap]
+   * @param overBudget 已知按默认质量编码会超出体积上限(原图像素且原文件超出上限), 跳过体积计算
+   * @param out 不为空时输出到该流, 忽略 [outputFile]
+   */
+  private suspend fun encodeBitmap(
+    bitmap: Bitmap,
+    overBudget: Boolean,
+    outputFile: File?,
+    fitBudget: Boolean,
+    outputFormat: ImageOutputFormat,
+    recorder: StageRecorder,
+    out: OutputStream? = null
+  ): ImageCompressResult {
+    coroutineContext.ensureActive()
+    val buffer = ReusableByteArrayOutputStream()
+    val counter = out?.let {CountingOutputStream(it)}
+    val quality = if (outputFormat.isLossless) {
+      //无损格式调整质量只改变编码耗时, 直接按默认质量编码一次
+      timed(recorder, ImageCompressResult.Stage.ENCODE) {
+        encode(bitmap, outputFormat, outputFormat.defaultQuality, counter ?: buffer)
+      }
+      outputFormat.defaultQuality
+    } else if (fitBudget) {
+      timed(recorder, ImageCompressResult.Stage.ENCODE) {
+        searchQuality(bitmap, getByteBudget(bitmap.width, bitmap.height), buffer, outputFormat)
+      }
+    } else {
+      //按默认质量编码到内存中计算体积, 符合要求时直接作为输出, 不再重复编码
+      val ratio = if (overBudget) {
+        COMPRESS_RATIO
+      } else {
+        timed(recorder, ImageCompressResult.Stage.MEASURE) {
+          encode(bitmap, outputFormat, outputFormat.defaultQuality, buffer)
+          getCompressRatio(buffer.size().toLong(), bitmap.width, bitmap.height)
+        }
+      }
+      if (ratio == NOT_COMPRESS) {
+        outputFormat.defaultQuality
+      } else {
+        coroutineContext.ensureActive()
+        buffer.reset()
+        timed(recorder, ImageCompressResult.Stage.ENCODE) {
+          //质量已确定, 直接编码到调用方的输出流
+          encode(bitmap, outputFormat, ratio, counter ?: buffer)
+        }
+        ratio
+      }
+    }
+    coroutineContext.ensureActive()
+    recorder.allocate(ImageCompressResult.Stage.ENCODE, buffer.buffer().size.toLong())
+
+    if (counter != null) {
+      timed(recorder, ImageCompressResult.Stage.WRITE) {
+        //已经直接编码到输出流时 buffer 为空
+        counter.write(buffer.buffer(), 0, buffer.size())
+        counter.flush()
+      }
+      return ImageCompressResult(null, null, bitmap.width, bitmap.height, quality, outputFormat.mimeType, recorder.snapshot(),
+        null, counter.count)
+    }
+
+    if (outputFile == null) {
+      return ImageCompressResult(null, buffer.toByteArray(), bitmap.width, bitmap.height, quality, outputFormat.mimeType, recorder.snapshot())
+    }
+    timed(recorder, ImageCompressResult.Stage.WRITE) {
+      buffer.writeTo(outputFile)
+    }
+    return ImageCompressResult(outputFile, null, bitmap.width, bitmap.height, quality, outputFormat.mimeType, recorder.snapshot())
+  }
+
+  /**
+   * 解码仅用于显示的Bitmap, API 26 及以上使用 HARDWARE 配置, 像素数据只存在于显存中
+   * 返回的Bitmap不能编码或读取像素
+   * @return 解码预算绑定在返回的Bitmap上, 使用完毕后调用 BitmapPool.put 或 DecodeMemoryGovernor.release 归还;
+   * 只调用 recycle 或直接丢弃时, 预算要等到Bitmap被GC后才归还
+   * @throws IOException 图片无法解析
+   */
+  suspend fun decodeForDisplay(): Bitmap = withContext(ImageDispatchers.IMAGE) {
+    source.withDescriptor {
+      val options = BitmapFactory.Options().apply {
+        inJustDecodeBounds = true
+      }
+      source.decode(options)
+      if (options.outWidth <= 0 || options.outHeight <= 0) {
+        throw IOException("无法解析图片: $source")
+      }
+      val config = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) Bitmap.Config.HARDWARE else Bitmap.Config.ARGB_8888
+      compressPxOption(getTargetSize(), getTargetSize(), options, config)
+      ensureActive()
+      //与压缩使用相同的估算: 不采样时按原图, 采样解码时按采样结果和目标尺寸
+      val bitmap = DecodeMemoryGovernor.decode(estimateDecodedBytes(options)) {
+        if (options.inSampleSize != 1 && canDecodeToTarget()) {
+          decodeToTarget(display = true)
+        } else {
+          source.decode(options)
+        }
+      }
+      return@withContext bitmap ?: throw IOException("图片解码失败: $source")
+    }
+  }
+
+  /**
+   * 根据图片头信息估算压缩过程中同时存在的Bitmap字节数, 即解码前向 [DecodeMemoryGovernor] 申请的预算
+   * @param lowMemory 与 [compress] 的参数一致
+   * @return 无法解析时返回0
+   */
+  fun estimateDecodedBytes(lowMemory: Boolean = false): Long = source.withDescriptor {
+    val options = BitmapFactory.Options().apply {
+      inJustDecodeBounds = true
+    }
+    source.decode(options)
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      return@withDescriptor 0L
+    }
+    compressPxOption(getTargetSize(), getTargetSize(), options, getDecodeConfig(options, lowMemory))
+    estimateDecodedBytes(options)
+  }
+
+  /**
+   * @param options 已经计算过采样参数
+   */
+  private fun estimateDecodedBytes(options: BitmapFactory.Options): Long {
+    val width = options.outWidth
+    val height = options.outHeight
+    val bytesPerPixel = if (options.inPreferredConfig == Bitmap.Config.RGB_565) 2 else 4
+    val sampleSize = options.inSampleSize
+    if (sampleSize == 1) {
+      return width.toLong() * height * bytesPerPixel
+    }
+    val targetBytes = estimateTargetBytes(options)
+    if (shouldDecodeTiled(options)) {
+      return targetBytes + TILE_SIZE.toLong() * TILE_SIZE * bytesPerPixel
+    }
+    if (canDecodeToTarget()) {
+      return targetBytes
+    }
+    //采样解码的图和缩放后的图同时存在
+    val sampledBytes = ((width + sampleSize - 1) / sampleSize).toLong() * ((height + sampleSize - 1) / sampleSize) * bytesPerPixel
+    return sampledBytes + targetBytes
+  }
+
+  /**
+   * 缩放到临界尺寸后的Bitmap字节数
+   */
+  private fun estimateTargetBytes(options: BitmapFactory.Options): Long {
+    val bytesPerPixel = if (options.inPreferredConfig == Bitmap.Config.RGB_565) 2 else 4
+    val scale = getTargetSize() / min(options.outWidth, options.outHeight).toFloat()
+    return (options.outWidth * scale).roundToInt().toLong() * (options.outHeight * scale).roundToInt() * bytesPerPixel
   }
 
+  /**
+   * 二分搜索编码质量, 找到编码后不超过 [budget] 的最高质量, 编码次数不超过 [MAX_ENCODE_ATTEMPTS]
+   * 所有尝试共用 [buffer], 返回时 [buffer] 中为所选质量的编码结果
+   * @return 所选质量
+   */
+  private fun searchQuality(bitmap: Bitmap, budget: Long, buffer: ReusableByteArrayOutputStream, format: ImageOutputFormat): Int {
+    //先按默认质量编码, 已经符合要求则无需搜索
+    buffer.reset()
+    encode(bitmap, format, format.defaultQuality, buffer)
+    if (buffer.size() <= budget) {
+      return format.defaultQuality
+    }
+    var low = MIN_QUALITY
+    var high = min(MAX_QUALITY, format.defaultQuality - 1)
+    var best = MIN_QUALITY
+    var lastEncoded = format.defaultQuality
+    var attempts = 1
+    while (low <= high && attempts < MAX_ENCODE_ATTEMPTS) {
+      val quality = (low + high) ushr 1
+      buffer.reset()
+      encode(bitmap, format, quality, buffer)
+      lastEncoded = quality
+      attempts ++
+      if (buffer.size() <= budget) {
+        best = quality
+        low = quality + 1
+      } else {
+        high = quality - 1
+      }
+    }
+    //最后一次尝试不是最优结果时重新编码一次, 最低质量仍超出上限时也取最低质量
+    if (lastEncoded != best) {
+      buffer.reset()
+      encode(bitmap, format, best, buffer)
+    }
+    return best
+  }
+
+  private fun encode(bitmap: Bitmap, format: ImageOutputFormat, quality: Int, out: OutputStream) {
+    if (! format.encode(bitmap, quality, out)) {
+      throw IOException("图片编码失败: $format")
+    }
+  }
+
+  /**
+   * 原图是否可以直接作为该格式的输出, JPEG 为默认格式, 与之前的行为保持一致, 不限制原图格式
+   */
+  private fun isSameFormat(mimeType: String?, format: ImageOutputFormat): Boolean {
+    return when(format) {
+      ImageOutputFormat.JPEG -> true
+      ImageOutputFormat.HEIF -> mimeType == "image/heif" || mimeType == "image/heic"
+      else -> mimeType == format.mimeType
+    }
+  }
+
+  private inline fun <T> timed(recorder: StageRecorder, stage: ImageCompressResult.Stage, block: () -> T): T {
+    val start = SystemClock.elapsedRealtime()
+    val cpuStart = Debug.threadCpuTimeNanos()
+    try {
+      return block()
+    } finally {
+      recorder.record(stage, SystemClock.elapsedRealtime() - start, Debug.threadCpuTimeNanos() - cpuStart)
+    }
+  }
+
+  /**
+   * 上报统计数据, 未设置 [metricsListener] 时不做任何事
+   * @param options 边框信息, 命中缓存时为空
+   */
+  private fun report(recorder: StageRecorder, options: BitmapFactory.Options?, result: ImageCompressResult) {
+    val listener = metricsListener ?: return
+    listener.onCompressed(ImageCompressMetrics(
+      compressType,
+      options?.outWidth ?: 0,
+      options?.outHeight ?: 0,
+      source.length(),
+      result.width,
+      result.height,
+      result.size,
+      options?.inSampleSize ?: 0,
+      result.quality,
+      result.mimeType,
+      options == null,
+      recorder.toMetrics()
+    ))
+  }
+
+
   /**
    * 通过缩放图片像素来减少图片占用内存大小
    * @return
@@ -53,29 +792,58 @@ class ImageCompressUtil(val file: File, private val compressType: Int = TYPE_MID
     //该属性设置为true只会加载图片的边框进来，并不会加载图片具体的像素点
     options.inJustDecodeBounds = true
     //第一次加载图片，这时只会加载图片的边框进来，并不会加载图片中的像素点
-    BitmapFactory.decodeFile(file.absolutePath, options)
-    when(compressType) {
-      TYPE_MIN -> {
-        compressPxOption(MIN_SIZE, MIN_SIZE, options)
-      }
-      TYPE_MIDDLE -> {
-        compressPxOption(MIDDLE_SIZE, MIDDLE_SIZE, options)
-      }
-      else -> {
-        compressPxOption(MIDDLE_SIZE, MIDDLE_SIZE, options)
+    source.decode(options)
+    compressPxOption(getTargetSize(), getTargetSize(), options)
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      return null
+    }
+    //同步调用不能等待预算, 直接占用; 结果交给 [bitmap] 的使用方, 解码结束即归还, 不绑定到Bitmap上
+    val reserved = DecodeMemoryGovernor.reserveNow(estimateDecodedBytes(options))
+    try {
+      return decodeImageJava(options)
+    } finally {
+      DecodeMemoryGovernor.release(reserved)
+    }
+  }
+
+  private fun decodeImageJava(options: BitmapFactory.Options): Bitmap? {
+    if (options.inSampleSize != 1 && canDecodeToTarget()) {
+      return try {
+        decodeToTarget().also {
+          ratio = measureRatio(it)
+        }
+      } catch (e: IOException) {
+        e.printStackTrace()
+        null
       }
     }
-    val bitmap = BitmapFactory.decodeFile(file.absolutePath, options) ?: return null
+    val bitmap = BitmapPool.decodeWithPool(options, options.outWidth, options.outHeight) {
+      source.decode(it)
+    } ?: return null
     //加载图片并返回
     return if (options.inSampleSize == 1) { //分辨率没有处理过
-      ratio = getCompressRatio(file, bitmap.width, bitmap.height) //直接用原文件计算大小
+      val length = source.length()
+      //直接用原文件计算大小, 长度未知时编码后计算
+      ratio = if (length < 0) measureRatio(bitmap) else getCompressRatio(length, bitmap.width, bitmap.height)
       bitmap
     } else { //分辨率需要处理
       zoomBitmap(bitmap)
     }
   }
 
-  private fun compressPxOption(destWidth: Int, destHeight: Int, options: BitmapFactory.Options) {
+  private fun getTargetSize(): Int {
+    return when(compressType) {
+      TYPE_MIN -> MIN_SIZE
+      else -> MIDDLE_SIZE
+    }
+  }
+
+  private fun compressPxOption(
+    destWidth: Int,
+    destHeight: Int,
+    options: BitmapFactory.Options,
+    config: Bitmap.Config = Bitmap.Config.ARGB_8888
+  ) {
     //获得原图的宽和高
     val outWidth = options.outWidth
     val outHeight = options.outHeight
@@ -94,74 +862,201 @@ class ImageCompressUtil(val file: File, private val compressType: Int = TYPE_MID
     options.inJustDecodeBounds = false
     //设置缩放比例,如果达到要求,说明已经小于临界值,变小了.所以取循环上一次的值
     options.inSampleSize = if (sampleSize > 1) sampleSize / 2 else sampleSize
-    options.inPreferredConfig = Bitmap.Config.ARGB_8888
+    options.inPreferredConfig = config
+  }
+
+  /**
+   * 低内存模式下不透明的图片使用 RGB_565, 其余使用 ARGB_8888
+   * @param options 已读取边框的解码参数
+   */
+  private fun getDecodeConfig(options: BitmapFactory.Options, lowMemory: Boolean): Bitmap.Config {
+    return if (lowMemory && ImageHeaderUtil.isOpaque(options.outMimeType) {source.openInputStream()}) {
+      Bitmap.Config.RGB_565
+    } else {
+      Bitmap.Config.ARGB_8888
+    }
   }
 
   fun getCompressFolder(context: Context= AppUtil.getAppContext()): String = FileUtil.getExternalCacheDir().absolutePath
 
   /**
    * 根据图片分辨率大小判断其是否需要质量压缩
+   * @param length 按原画质编码后的文件大小
+   * */
+  private fun getCompressRatio(length: Long, outWidth: Int, outHeight: Int): Int {
+    return handleSize(length, getByteBudget(outWidth, outHeight))
+  }
+
+  /**
+   * 根据图片分辨率获取体积上限
    * */
-  private fun getCompressRatio(file: File, outWidth: Int, outHeight: Int): Int {
+  private fun getByteBudget(outWidth: Int, outHeight: Int): Long {
     when(compressType) {
       TYPE_MIN -> {
         return if (outWidth < MIN_SIZE && outHeight < MIN_SIZE) {
-          handleSize(file, THIRTY_KB)
+          THIRTY_KB
         } else if (outWidth > MIN_SIZE && outHeight > MIN_SIZE) {
-          handleSize(file, THIRTY_KB * 2)
+          THIRTY_KB * 2
         } else {
-          handleSize(file, THIRTY_KB * 3)
+          THIRTY_KB * 3
         }
       }
       TYPE_MIDDLE -> {
         return if (outWidth < MIDDLE_SIZE && outHeight < MIDDLE_SIZE) {
-          handleSize(file, ONE_HUNDRED_KB)
+          ONE_HUNDRED_KB
         } else if (outWidth > MIDDLE_SIZE && outHeight > MIDDLE_SIZE) {
-          handleSize(file, ONE_HUNDRED_KB * 2)
+          ONE_HUNDRED_KB * 2
         } else {
-          handleSize(file, ONE_HUNDRED_KB * 3)
+          ONE_HUNDRED_KB * 3
         }
       }
       else -> {
-        return NOT_COMPRESS
+        return Long.MAX_VALUE
       }
     }
   }
 
-  private fun handleSize(file: File, limit: Long): Int {
-    return if (file.length() > limit) {
+  private fun handleSize(length: Long, limit: Long): Int {
+    //长度未知(管道等不可定位的 Uri 来源)时不能认定原图符合要求
+    return if (length < 0 || length > limit) {
       COMPRESS_RATIO
     } else {
       NOT_COMPRESS
     }
   }
 
-  private fun saveBitmap(bitmap: Bitmap, path: String): File {
-    val file = File("$path$COPY_NAME")
-    if (file.exists()) {
-      file.delete()
+  /**
+   * 用于调整图片分辨率到合适的尺寸
+   * */
+  private fun zoomBitmap(bitmap: Bitmap): Bitmap {
+    val newBitmap = scaleBitmap(bitmap)
+    BitmapPool.put(bitmap)
+    this.ratio = measureRatio(newBitmap)
+    return newBitmap
+  }
+
+  /**
+   * 按原画质编码计算压缩比, 只统计编码后的字节数, 不落盘
+   * */
+  private fun measureRatio(bitmap: Bitmap): Int {
+    val length = CountingOutputStream().use {
+      bitmap.compress(Bitmap.CompressFormat.JPEG, 100, it)
+      it.count
     }
-    val out: FileOutputStream
-    try {
-      out = FileOutputStream(file)
-      if (bitmap.compress(Bitmap.CompressFormat.JPEG, 100, out)) {
-        out.flush()
-        out.close()
+    return getCompressRatio(length, bitmap.width, bitmap.height)
+  }
+
+  private fun canDecodeToTarget(): Boolean {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && (compressType == TYPE_MIN || compressType == TYPE_MIDDLE)
+  }
+
+  /**
+   * 使用 ImageDecoder 一次解码到短边为临界尺寸的大小, 与 [scaleBitmap] 的结果尺寸一致,
+   * 避免采样解码的大图和缩放后的图同时占用内存
+   * */
+  @RequiresApi(Build.VERSION_CODES.P)
+  private fun decodeToTarget(lowMemory: Boolean = false, display: Boolean = false): Bitmap {
+    return ImageDecoder.decodeBitmap(source.createDecoderSource()) {decoder, info, _ ->
+      val width = info.size.width
+      val height = info.size.height
+      val scale = getTargetSize() / min(width, height).toFloat()
+      decoder.setTargetSize(max(1, (width * scale).roundToInt()), max(1, (height * scale).roundToInt()))
+      if (! display) {
+        //需要编码, 不能使用硬件Bitmap; 可变才能放回 BitmapPool 复用
+        decoder.allocator = ImageDecoder.ALLOCATOR_SOFTWARE
+        decoder.isMutableRequired = true
       }
-    } catch (e: FileNotFoundException) {
-      
-      e.printStackTrace()
+      if (lowMemory) {
+        //不透明的图片解码为 RGB_565
+        decoder.memorySizePolicy = ImageDecoder.MEMORY_POLICY_LOW_RAM
+      }
+    }
+  }
+
+  private fun shouldDecodeTiled(options: BitmapFactory.Options): Boolean {
+    return options.inSampleSize != 1 && (compressType == TYPE_MIN || compressType == TYPE_MIDDLE) &&
+        options.outWidth.toLong() * options.outHeight > tiledDecodeThreshold && isRegionDecodable(options.outMimeType)
+  }
+
+  /**
+   * BitmapRegionDecoder 只支持 JPEG、PNG、WebP 和 HEIF(API 28 及以上), GIF、BMP 等只能整图解码
+   */
+  private fun isRegionDecodable(mimeType: String?): Boolean {
+    return when(mimeType) {
+      "image/jpeg", "image/png", "image/webp" -> true
+      "image/heif", "image/heic" -> Build.VERSION.SDK_INT >= Build.VERSION_CODES.P
+      else -> false
+    }
+  }
+
+  /**
+   * 使用 BitmapRegionDecoder 逐块采样解码, 缩放后绘制到预先分配的目标Bitmap上
+   * 目标尺寸与 [scaleBitmap] 一致, 同一时间只存在一个块
+   * @return 无法创建 BitmapRegionDecoder 时返回null, 由调用方整图解码
+   * */
+  private suspend fun decodeTiled(width: Int, height: Int, config: Bitmap.Config): Bitmap? {
+    val decoder = try {
+      source.newRegionDecoder()
     } catch (e: IOException) {
+      
       e.printStackTrace()
+      return null
+    }
+    val scale = getTargetSize() / min(width, height).toFloat()
+    val target = BitmapPool.getOrCreate(max(1, (width * scale).roundToInt()), max(1, (height * scale).roundToInt()), config)
+    //每块的采样率取不超过缩放比例的最大2的幂, 采样后再缩放到目标尺寸
+    var sampleSize = 1
+    while (sampleSize * 2 * scale <= 1f) {
+      sampleSize *= 2
+    }
+    val tileSource = TILE_SIZE * sampleSize
+    val options = BitmapFactory.Options().apply {
+      inSampleSize = sampleSize
+      inPreferredConfig = config
+      inMutable = true
+    }
+    val canvas = Canvas(target)
+    val paint = Paint(Paint.FILTER_BITMAP_FLAG)
+    val sourceRect = Rect()
+    val tileRect = Rect()
+    val targetRect = Rect()
+    var tile: Bitmap? = null
+    try {
+      var top = 0
+      while (top < height) {
+        coroutineContext.ensureActive()
+        val bottom = min(top + tileSource, height)
+        var left = 0
+        while (left < width) {
+          val right = min(left + tileSource, width)
+          sourceRect.set(left, top, right, bottom)
+          //复用上一块的Bitmap, 边缘的块只会填充左上角, 只绘制解码出的部分
+          options.inBitmap = tile
+          tile = decoder.decodeRegion(sourceRect, options) ?: throw IOException("图片分块解码失败: $source")
+          tileRect.set(0, 0, BitmapPool.getRegionSampledSize(right - left, sampleSize),
+            BitmapPool.getRegionSampledSize(bottom - top, sampleSize))
+          //按累计位置取整, 相邻块之间没有缝隙
+          targetRect.set((left * scale).roundToInt(), (top * scale).roundToInt(), (right * scale).roundToInt(),
+            (bottom * scale).roundToInt())
+          canvas.drawBitmap(tile, tileRect, targetRect, paint)
+          left = right
+        }
+        top = bottom
+      }
+      return target
+    } catch (e: Throwable) {
+      BitmapPool.put(target)
+      throw e
+    } finally {
+      BitmapPool.put(tile)
+      decoder.recycle()
     }
-    return file
   }
 
   /**
-   * 用于调整图片分辨率到合适的尺寸
+   * 按短边缩放到临界尺寸, 结果Bitmap从 [BitmapPool] 中获取
    * */
-  private fun zoomBitmap(bitmap: Bitmap): Bitmap {
-    val matrix = Matrix()
+  private fun scaleBitmap(bitmap: Bitmap): Bitmap {
     val width = bitmap.width
     val height = bitmap.height
     val min = min(width, height)
@@ -176,11 +1071,7 @@ class ImageCompressUtil(val file: File, private val compressType: Int = TYPE_MID
         1f
       }
     }
-    matrix.postScale(ratio, ratio)
-    val newBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.width, bitmap.height, matrix, true)
-    this.ratio = getCompressRatio(saveBitmap(newBitmap, getCompressFolder(AppUtil.getAppContext())), newBitmap.width,
-      newBitmap.height)
-    return newBitmap
+    return BitmapPool.createScaledBitmap(bitmap, max(1, (width * ratio).roundToInt()), max(1, (height * ratio).roundToInt()))
   }
 
-}
\ No newline at end of file
+}
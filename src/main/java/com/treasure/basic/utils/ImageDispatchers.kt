@@ -0,0 +1,36 @@
+package com.treasure.basic.utils
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.asCoroutineDispatcher
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 图片解码/编码专用调度器
+ * 图片处理占用大量内存和CPU,不与 Dispatchers.IO 共用线程,避免挤占网络和磁盘任务
+ */
+object ImageDispatchers {
+
+  /**
+   * 并行度, 由核心数决定, 至少2个线程, 最多4个线程(再多内存压力大于收益)
+   */
+  @JvmField
+  val PARALLELISM = Runtime.getRuntime().availableProcessors().coerceIn(2, 4)
+
+  @JvmStatic
+  val IMAGE: CoroutineDispatcher by lazy {
+    Executors.newFixedThreadPool(PARALLELISM, ImageThreadFactory()).asCoroutineDispatcher()
+  }
+
+  private class ImageThreadFactory : ThreadFactory {
+    private val count = AtomicInteger()
+
+    override fun newThread(r: Runnable): Thread {
+      return Thread(r, "image-worker-${count.incrementAndGet()}").apply {
+        isDaemon = true
+        priority = Thread.NORM_PRIORITY - 1
+      }
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package com.treasure.basic.utils
+
+import android.graphics.Bitmap
+import android.graphics.Color
+import android.util.Size
+import com.treasure.basic.entity.ImageMediaEntity
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+
+/**
+ * 媒体库图片的感知哈希(dHash)索引, 用于在压缩上传前找出连拍等近似重复的图片
+ * 哈希由缩略图计算, 以 _ID + DATE_MODIFIED 为key持久化到缓存目录, 每张图片只计算一次;
+ * 查询通过 [HammingBkTree] 按汉明距离查找
+ *
+ * 索引文件为追加写入的定长记录(id, modified, hash), 同一id以最后一条为准, 过期记录过多时重写
+ */
+object ImageHashIndex {
+
+  private const val DIR_NAME = "phash"
+  private const val FILE_NAME = "index.bin"
+  private const val MAGIC = 0x50484153 //PHAS
+  private const val VERSION = 1
+  private const val THUMBNAIL_SIZE = 96
+  private const val HASH_WIDTH = 9 //dHash比较相邻像素, 宽度多1
+  private const val HASH_HEIGHT = 8
+
+  /**
+   * 默认的近似阈值, 64位中不同的位数
+   */
+  const val DEFAULT_DISTANCE = 10
+
+  private val file: File by lazy {File(FileUtil.getExternalCacheDir(DIR_NAME), FILE_NAME)}
+
+  private var entries: HashMap<Long, Entry>? = null
+  private val pending = ArrayList<Pair<Long, Entry>>()
+  private var recordCount = 0
+  private var tree: HammingBkTree? = null
+
+  /**
+   * 已计算的哈希, 图片修改过时返回null
+   */
+  @JvmStatic
+  @Synchronized
+  fun getHash(image: ImageMediaEntity): Long? {
+    val id = image.id.toLongOrNull() ?: return null
+    return loadEntries()[id]?.takeIf {it.modified == image.modified}?.hash
+  }
+
+  /**
+   * 在后台并行计算尚未索引的图片, 完成后写入索引文件
+   * @return 新计算的数量
+   */
+  suspend fun index(images: List<ImageMediaEntity>): Int = withContext(ImageDispatchers.IMAGE) {
+    val missing = images.filter {getHash(it) == null && it.id.toLongOrNull() != null}
+    if (missing.isEmpty()) {
+      return@withContext 0
+    }
+    val permits = Semaphore(ImageDispatchers.PARALLELISM)
+    val computed = coroutineScope {
+      missing.map {image ->
+        async {
+          permits.withPermit {
+            computeHash(image)?.also {put(image.id.toLong(), image.modified, it)}
+          }
+        }
+      }.awaitAll()
+    }
+    flush()
+    return@withContext computed.count {it != null}
+  }
+
+  /**
+   * 查找与 [image] 近似的已索引图片
+   * @return 图片id, 不包括 [image] 本身; [image] 未索引时为空
+   */
+  @JvmStatic
+  @JvmOverloads
+  @Synchronized
+  fun findSimilar(image: ImageMediaEntity, maxDistance: Int = DEFAULT_DISTANCE): List<String> {
+    val hash = getHash(image) ?: return emptyList()
+    val id = image.id.toLong()
+    return getTree().search(hash, maxDistance).filter {it != id}.map {it.toString()}
+  }
+
+  /**
+   * 将 [images] 中近似的图片分组, 未索引的图片不参与分组
+   * @return 只包含数量大于1的分组, 组内顺序与 [images] 一致
+   */
+  @JvmStatic
+  @JvmOverloads
+  @Synchronized
+  fun groupSimilar(images: List<ImageMediaEntity>, maxDistance: Int = DEFAULT_DISTANCE): List<List<ImageMediaEntity>> {
+    val positions = HashMap<Long, Int>(images.size)
+    images.forEachIndexed {index, image ->
+      if (getHash(image) != null) {
+        positions[image.id.toLong()] = index
+      }
+    }
+    //并查集
+    val parents = IntArray(images.size) {it}
+    fun find(index: Int): Int {
+      var root = index
+      while (parents[root] != root) {
+        parents[root] = parents[parents[root]]
+        root = parents[root]
+      }
+      return root
+    }
+    val tree = getTree()
+    for ((id, index) in positions) {
+      val hash = entries !![id] !!.hash
+      tree.search(hash, maxDistance).forEach {other ->
+        val otherIndex = positions[other]
+        if (otherIndex != null && otherIndex != index) {
+          parents[find(otherIndex)] = find(index)
+        }
+      }
+    }
+    return positions.values.sorted().groupBy {find(it)}.values.filter {it.size > 1}.map {group -> group.map {images[it]}}
+  }
+
+  /**
+   * 计算64位dHash: 缩放到9x8的灰度图, 每行相邻像素比较亮度
+   * @return 缩略图加载失败时返回null
+   */
+  suspend fun computeHash(image: ImageMediaEntity): Long? {
+    val thumbnail = ImageMediaUtil.decodeThumbnail(image.uri, Size(THUMBNAIL_SIZE, THUMBNAIL_SIZE)) ?: return null
+    try {
+      return computeHash(thumbnail)
+    } finally {
+      BitmapPool.put(thumbnail)
+    }
+  }
+
+  @JvmStatic
+  fun computeHash(bitmap: Bitmap): Long {
+    val small = BitmapPool.createScaledBitmap(bitmap, HASH_WIDTH, HASH_HEIGHT)
+    val pixels = IntArray(HASH_WIDTH * HASH_HEIGHT)
+    try {
+      small.getPixels(pixels, 0, HASH_WIDTH, 0, 0, HASH_WIDTH, HASH_HEIGHT)
+    } finally {
+      BitmapPool.put(small)
+    }
+    var hash = 0L
+    for (y in 0 until HASH_HEIGHT) {
+      for (x in 0 until HASH_WIDTH - 1) {
+        val left = luminance(pixels[y * HASH_WIDTH + x])
+        val right = luminance(pixels[y * HASH_WIDTH + x + 1])
+        hash = (hash shl 1) or (if (left > right) 1L else 0L)
+      }
+    }
+    return hash
+  }
+
+  /**
+   * 将新计算的哈希追加到索引文件, 过期记录超过一半时重写
+   */
+  @JvmStatic
+  @Synchronized
+  fun flush() {
+    val index = loadEntries()
+    try {
+      //文件在加载后被删除时没有文件头, 追加的记录下次加载会被丢弃, 改为重写全部记录
+      if (recordCount + pending.size > index.size * 2 || pending.isNotEmpty() && file.length() == 0L) {
+        rewrite(index)
+      } else if (pending.isNotEmpty()) {
+        DataOutputStream(FileOutputStream(file, true).buffered()).use {out ->
+          pending.forEach {(id, entry) -> writeEntry(out, id, entry)}
+        }
+        recordCount += pending.size
+      }
+    } catch (e: IOException) {
+      e.printStackTrace()
+    }
+    pending.clear()
+  }
+
+  @JvmStatic
+  @Synchronized
+  fun clear() {
+    entries = HashMap()
+    pending.clear()
+    recordCount = 0
+    tree = null
+    file.delete()
+  }
+
+  @Synchronized
+  private fun put(id: Long, modified: Long, hash: Long) {
+    val entry = Entry(modified, hash)
+    val previous = loadEntries().put(id, entry)
+    pending.add(id to entry)
+    //已有记录改变时BK树无法删除节点, 下次查询时重建
+    if (previous != null) {
+      tree = null
+    } else {
+      tree?.add(hash, id)
+    }
+  }
+
+  private fun getTree(): HammingBkTree {
+    tree?.let {return it}
+    val created = HammingBkTree()
+    loadEntries().forEach {(id, entry) -> created.add(entry.hash, id)}
+    tree = created
+    return created
+  }
+
+  private fun loadEntries(): HashMap<Long, Entry> {
+    entries?.let {return it}
+    val loaded = HashMap<Long, Entry>()
+    recordCount = 0
+    if (file.exists()) {
+      try {
+        DataInputStream(file.inputStream().buffered()).use {input ->
+          if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+            throw IOException("索引文件版本不一致")
+          }
+          while (true) {
+            val id = try {
+              input.readLong()
+            } catch (e: EOFException) {
+              break
+            }
+            loaded[id] = Entry(input.readLong(), input.readLong())
+            recordCount ++
+          }
+        }
+      } catch (e: IOException) {
+        //文件损坏时丢弃, 重新计算
+        e.printStackTrace()
+        loaded.clear()
+        recordCount = 0
+        file.delete()
+      }
+    }
+    entries = loaded
+    return loaded
+  }
+
+  private fun rewrite(index: Map<Long, Entry>) {
+    file.parentFile?.mkdirs()
+    val temp = File(file.parentFile, "$FILE_NAME.tmp")
+    DataOutputStream(temp.outputStream().buffered()).use {out ->
+      writeHeader(out)
+      index.forEach {(id, entry) -> writeEntry(out, id, entry)}
+    }
+    if (! temp.renameTo(file)) {
+      throw IOException("无法写入索引文件")
+    }
+    recordCount = index.size
+  }
+
+  private fun writeHeader(out: DataOutputStream) {
+    out.writeInt(MAGIC)
+    out.writeInt(VERSION)
+  }
+
+  private fun writeEntry(out: DataOutputStream, id: Long, entry: Entry) {
+    out.writeLong(id)
+    out.writeLong(entry.modified)
+    out.writeLong(entry.hash)
+  }
+
+  private fun luminance(color: Int): Int {
+    return (Color.red(color) * 299 + Color.green(color) * 587 + Color.blue(color) * 114) / 1000
+  }
+
+  private class Entry(val modified: Long, val hash: Long)
+}
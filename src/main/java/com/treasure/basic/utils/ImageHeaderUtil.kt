@@ -0,0 +1,86 @@
+package com.treasure.basic.utils
+
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * 读取图片文件头信息, 不解码像素
+ */
+object ImageHeaderUtil {
+
+  private const val PNG_SIGNATURE_LENGTH = 8L
+  private const val PNG_IHDR = 0x49484452
+  private const val PNG_TRNS = 0x74524E53
+  private const val PNG_IDAT = 0x49444154
+  private const val PNG_COLOR_ALPHA = 4 //颜色类型中的透明通道位
+
+  /**
+   * 判断图片是否一定不透明, 无法确定时返回false
+   * @param mimeType BitmapFactory.Options.outMimeType
+   */
+  @JvmStatic
+  fun isOpaque(file: File, mimeType: String?): Boolean {
+    return isOpaque(mimeType) {file.inputStream()}
+  }
+
+  /**
+   * 判断图片是否一定不透明, 无法确定时返回false
+   * @param open 只有PNG需要读取文件头时才会调用
+   */
+  @JvmStatic
+  fun isOpaque(mimeType: String?, open: () -> InputStream?): Boolean {
+    return when(mimeType) {
+      "image/jpeg", "image/jpg", "image/heif", "image/heic" -> true
+      "image/png" -> try {
+        open()?.buffered()?.use {isOpaquePng(it)} ?: false
+      } catch (e: IOException) {
+        e.printStackTrace()
+        false
+      }
+      else -> false
+    }
+  }
+
+  /**
+   * PNG: 颜色类型不含透明通道, 且在 IDAT 之前没有 tRNS 块
+   */
+  private fun isOpaquePng(input: InputStream): Boolean {
+    val data = DataInputStream(input)
+    skipFully(data, PNG_SIGNATURE_LENGTH)
+    while (true) {
+      val length = data.readInt()
+      when(data.readInt()) {
+        PNG_IHDR -> {
+          skipFully(data, 9) //宽 高 位深
+          val colorType = data.readUnsignedByte()
+          if (colorType and PNG_COLOR_ALPHA != 0) {
+            return false
+          }
+          skipFully(data, length - 10L)
+        }
+        PNG_TRNS -> return false
+        PNG_IDAT -> return true
+        else -> skipFully(data, length.toLong())
+      }
+      skipFully(data, 4) //CRC
+    }
+  }
+
+  private fun skipFully(input: InputStream, count: Long) {
+    var remaining = count
+    while (remaining > 0) {
+      val skipped = input.skip(remaining)
+      if (skipped <= 0) {
+        if (input.read() == - 1) {
+          throw EOFException()
+        }
+        remaining --
+      } else {
+        remaining -= skipped
+      }
+    }
+  }
+}
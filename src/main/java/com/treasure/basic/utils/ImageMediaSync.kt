@@ -0,0 +1,273 @@
+package com.treasure.basic.utils
+
+import android.content.ContentResolver
+import android.content.ContentUris
+import android.database.ContentObserver
+import android.net.Uri
+import android.os.Build
+import android.provider.MediaStore
+import androidx.annotation.RequiresApi
+import com.treasure.basic.entity.ImageMediaDiff
+import com.treasure.basic.entity.ImageMediaEntity
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+
+/**
+ * 增量同步媒体库图片
+ * API 30 及以上记录每个存储卷的 MediaStore.getGeneration, 只查询 GENERATION_MODIFIED 更大的行;
+ * 以下记录 DATE_MODIFIED 的最大值, 只查询不早于该时间的行. 删除优先使用通知中的Uri,
+ * 无法确定时只查询 _ID 一列与已知的id比较
+ *
+ * @param bucketId 相册id, 为空时同步所有图片, 与 [ImageMediaUtil.loadImages] 的参数一致
+ */
+class ImageMediaSync(private val bucketId: String = "") {
+
+  companion object {
+    private const val REFRESH_DELAY_MS = 300L //连续的通知只同步一次
+  }
+
+  private val mutex = Mutex()
+  private val known = HashMap<Long, Long>() //id -> DATE_MODIFIED
+  private val generations = HashMap<String, Long>()
+  private val versions = HashMap<String, String>()
+  private var watermark = 0L
+  private var initialized = false
+  private val pending = PendingChanges()
+
+  /**
+   * 同步一次, 第一次为全量结果
+   */
+  suspend fun sync(): ImageMediaDiff {
+    pending.markUnknown()
+    return syncPending()
+  }
+
+  /**
+   * 先返回全量结果, 之后每次媒体库变化时返回增量结果, 没有变化的通知不会返回
+   */
+  fun changes(): Flow<ImageMediaDiff> = callbackFlow {
+    val signal = Channel<Unit>(Channel.CONFLATED)
+    val observer = object : ContentObserver(null) {
+
+      override fun onChange(selfChange: Boolean, uri: Uri?) {
+        pending.markUnknown()
+        signal.trySend(Unit)
+      }
+
+      @RequiresApi(Build.VERSION_CODES.R)
+      override fun onChange(selfChange: Boolean, uris: Collection<Uri>, flags: Int) {
+        pending.add(uris, flags)
+        signal.trySend(Unit)
+      }
+    }
+    val resolver = AppUtil.getAppContext().contentResolver
+    resolver.registerContentObserver(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, observer)
+    launch {
+      send(sync())
+      for (notified in signal) {
+        delay(REFRESH_DELAY_MS)
+        val diff = syncPending()
+        if (! diff.isEmpty) {
+          send(diff)
+        }
+      }
+    }
+    awaitClose {
+      resolver.unregisterContentObserver(observer)
+    }
+  }
+
+  private suspend fun syncPending(): ImageMediaDiff = mutex.withLock {
+    withContext(Dispatchers.IO) {
+      val changes = pending.take()
+      if (! initialized || isVersionChanged()) {
+        return@withContext fullSync()
+      }
+      val changed = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) queryByGeneration() else queryByWatermark()
+      val inserted = ArrayList<ImageMediaEntity>()
+      val updated = ArrayList<ImageMediaEntity>()
+      changed.forEach {image ->
+        val previous = known.put(image.id.toLong(), image.modified)
+        when {
+          previous == null -> inserted.add(image)
+          //按时间查询时包含同一秒内已经同步过的行
+          previous != image.modified || Build.VERSION.SDK_INT >= Build.VERSION_CODES.R -> updated.add(image)
+        }
+      }
+      val deleted = when {
+        changes.scanDeleted -> scanDeleted()
+        else -> changes.deletedIds.filter {known.remove(it) != null}.map {it.toString()}
+      }
+      ImageMediaDiff(inserted, updated, deleted, false)
+    }
+  }
+
+  private fun fullSync(): ImageMediaDiff {
+    known.clear()
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+      recordGenerations()
+    }
+    val images = query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, null, null)
+    images.forEach {known[it.id.toLong()] = it.modified}
+    watermark = images.maxOfOrNull {it.modified} ?: 0L
+    initialized = true
+    return ImageMediaDiff(images, emptyList(), emptyList(), true)
+  }
+
+  /**
+   * 存储卷增减或版本变化时 generation 不再连续, 需要全量同步
+   */
+  private fun isVersionChanged(): Boolean {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+      return false
+    }
+    val context = AppUtil.getAppContext()
+    val volumes = getVolumeNames()
+    if (volumes != versions.keys) {
+      return true
+    }
+    return volumes.any {MediaStore.getVersion(context, it) != versions[it]}
+  }
+
+  @RequiresApi(Build.VERSION_CODES.R)
+  private fun recordGenerations() {
+    val context = AppUtil.getAppContext()
+    generations.clear()
+    versions.clear()
+    getVolumeNames().forEach {
+      versions[it] = MediaStore.getVersion(context, it)
+      generations[it] = MediaStore.getGeneration(context, it)
+    }
+  }
+
+  /**
+   * 先记录当前 generation 再查询, 查询期间的变化在下次同步时重复返回而不会丢失
+   */
+  @RequiresApi(Build.VERSION_CODES.R)
+  private fun queryByGeneration(): List<ImageMediaEntity> {
+    val context = AppUtil.getAppContext()
+    val result = ArrayList<ImageMediaEntity>()
+    getVolumeNames().forEach {volume ->
+      val generation = generations[volume] ?: 0L
+      generations[volume] = MediaStore.getGeneration(context, volume)
+      result += query(MediaStore.Images.Media.getContentUri(volume), "${MediaStore.MediaColumns.GENERATION_MODIFIED} >?",
+        generation.toString())
+    }
+    return result
+  }
+
+  private fun queryByWatermark(): List<ImageMediaEntity> {
+    val images = query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, "${MediaStore.Images.Media.DATE_MODIFIED} >=?", watermark.toString())
+    watermark = maxOf(watermark, images.maxOfOrNull {it.modified} ?: 0L)
+    return images
+  }
+
+  private fun query(uri: Uri, extraSelection: String?, extraArg: String?): List<ImageMediaEntity> {
+    var selection = ImageMediaUtil.getImageSelection(bucketId)
+    var selectionArgs = ImageMediaUtil.getImageSelectionArgs(bucketId)
+    if (extraSelection != null && extraArg != null) {
+      selection = "($selection) and $extraSelection"
+      selectionArgs += extraArg
+    }
+    val images = ArrayList<ImageMediaEntity>()
+    try {
+      AppUtil.getAppContext().contentResolver.query(uri, ImageMediaUtil.IMAGE_PROJECTION, selection, selectionArgs, null)?.use {cursor ->
+        val columns = ImageMediaUtil.ImageColumns(cursor)
+        while (cursor.moveToNext()) {
+          images.add(columns.read(cursor))
+        }
+      }
+    } catch (e: Exception) {
+      
+      e.printStackTrace()
+    }
+    return images
+  }
+
+  /**
+   * 只查询 _ID 一列, 找出已经不存在的图片
+   */
+  private fun scanDeleted(): List<String> {
+    val ids = try {
+      AppUtil.getAppContext().contentResolver.query(
+        MediaStore.Images.Media.EXTERNAL_CONTENT_URI, arrayOf(MediaStore.Images.Media._ID),
+        ImageMediaUtil.getImageSelection(bucketId), ImageMediaUtil.getImageSelectionArgs(bucketId), null
+      )?.use {cursor ->
+        val column = cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID)
+        LongArray(cursor.count).also {ids ->
+          var index = 0
+          while (cursor.moveToNext() && index < ids.size) {
+            ids[index ++] = cursor.getLong(column)
+          }
+          ids.sort()
+        }
+      }
+    } catch (e: Exception) {
+      
+      e.printStackTrace()
+      null
+    } ?: return emptyList()
+    val deleted = known.keys.filter {ids.binarySearch(it) < 0}
+    deleted.forEach {known.remove(it)}
+    return deleted.map {it.toString()}
+  }
+
+  @RequiresApi(Build.VERSION_CODES.R)
+  private fun getVolumeNames(): Set<String> = MediaStore.getExternalVolumeNames(AppUtil.getAppContext())
+
+  /**
+   * 两次同步之间收到的通知
+   */
+  private class PendingChanges {
+    private var scanDeleted = false
+    private val deletedIds = HashSet<Long>()
+
+    @Synchronized
+    fun markUnknown() {
+      scanDeleted = true
+    }
+
+    /**
+     * 图片移出相册、移入回收站或标记为 IS_PENDING 时只会收到更新通知, 但已经不在默认查询结果中,
+     * 所以任何更新都要扫描删除
+     */
+    @RequiresApi(Build.VERSION_CODES.R)
+    @Synchronized
+    fun add(uris: Collection<Uri>, flags: Int) {
+      if (flags and ContentResolver.NOTIFY_DELETE != 0) {
+        uris.forEach {uri ->
+          val id = try {
+            ContentUris.parseId(uri)
+          } catch (e: RuntimeException) {
+            - 1L
+          }
+          if (id >= 0) deletedIds.add(id) else scanDeleted = true
+        }
+      }
+      if (flags and ContentResolver.NOTIFY_UPDATE != 0) {
+        scanDeleted = true
+      }
+      if (flags == 0) {
+        scanDeleted = true
+      }
+    }
+
+    @Synchronized
+    fun take(): Changes {
+      val changes = Changes(scanDeleted, deletedIds.toList())
+      scanDeleted = false
+      deletedIds.clear()
+      return changes
+    }
+  }
+
+  private class Changes(val scanDeleted: Boolean, val deletedIds: List<Long>)
+}
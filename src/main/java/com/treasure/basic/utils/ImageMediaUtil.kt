@@ -4,21 +4,46 @@
 
 package com.treasure.basic.utils
 
-import android.annotation.SuppressLint
+import android.content.ContentResolver
 import android.content.ContentValues
+import android.database.CharArrayBuffer
 import android.database.Cursor
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.ImageDecoder
+import android.graphics.Matrix
+import android.graphics.Paint
+import android.graphics.Rect
+import android.graphics.RectF
+import android.media.ExifInterface
 import android.net.Uri
 import android.os.Build
+import android.os.Bundle
+import android.os.CancellationSignal
 import android.os.Environment
 import android.provider.MediaStore
 import android.util.Size
+import androidx.annotation.RequiresApi
 import com.treasure.basic.entity.BucketMediaEntity
 import com.treasure.basic.entity.ImageMediaEntity
+import com.treasure.basic.entity.ImageMediaTable
+import kotlinx.coroutines.CoroutineStart
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import java.io.File
+import java.io.FileInputStream
+import java.io.FileNotFoundException
+import java.io.FileOutputStream
+import java.io.IOException
+import kotlin.math.roundToInt
 
 /**
  * 图片媒体库操作工具
@@ -31,22 +56,59 @@ object ImageMediaUtil {
   val MIME_TYPE_IMAGE_JPG = "image/jpg"
   val MIME_TYPE_IMAGE_GIF = "image/gif"
 
+  private const val MICRO_THUMBNAIL_SIZE = 96
+  private const val FIRST_PAGE_SIZE = 60 //第一屏
+  private const val PAGE_SIZE = 300
+
+  internal val IMAGE_PROJECTION = arrayOf(
+    MediaStore.Images.Media._ID,
+    MediaStore.Images.Media.DISPLAY_NAME,
+    MediaStore.Images.Media.TITLE,
+    MediaStore.Images.Media.MIME_TYPE,
+    MediaStore.Images.Media.SIZE,
+    MediaStore.Images.Media.WIDTH,
+    MediaStore.Images.Media.HEIGHT,
+    MediaStore.Images.Media.DATE_MODIFIED
+  )
+
+  /**
+   * 加载缩略图, 结果由 [ThumbnailCache] 持有, 不能 recycle; 并发请求同一张缩略图时只加载一次
+   * 不知道修改时间, 只使用内存缓存, 优先使用参数为 [ImageMediaEntity] 的版本
+   */
+  suspend fun loadThumbnail(uri: Uri, size: Size): Bitmap? {
+    //不经过缓存时结果直接交给调用方, 不占用解码预算
+    val id = getMediaId(uri) ?: return decodeThumbnail(uri, size)?.also {DecodeMemoryGovernor.release(it)}
+    return ThumbnailCache.get(id, - 1L, size) {decodeThumbnail(uri, size)}
+  }
+
+  /**
+   * 加载缩略图, 结果由 [ThumbnailCache] 的内存和磁盘缓存持有, 不能 recycle
+   */
+  suspend fun loadThumbnail(image: ImageMediaEntity, size: Size): Bitmap? {
+    val id = image.id.toLongOrNull() ?: return decodeThumbnail(image.uri, size)?.also {DecodeMemoryGovernor.release(it)}
+    return ThumbnailCache.get(id, image.modified, size) {decodeThumbnail(image.uri, size)}
+  }
+
   /**
-   * 加载缩略图
+   * 不经过缓存加载缩略图, 使用完毕后通过 BitmapPool.put 放回
+   * API 29 以下按 [size] 选择 MICRO_KIND(96x96) 或 MINI_KIND(512x384), 再缩小到 [size] 以内
+   * @return 解码预算绑定在返回的Bitmap上, 通过 BitmapPool.put 或 DecodeMemoryGovernor.release 归还;
+   * 只调用 recycle 或直接丢弃时, 预算要等到Bitmap被GC后才归还
    */
-  suspend fun loadThumbnail(uri: Uri, size: Size) = withContext(Dispatchers.IO) {
+  suspend fun decodeThumbnail(uri: Uri, size: Size): Bitmap? = withContext(Dispatchers.IO) {
     try {
-      return@withContext if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-        AppUtil.getAppContext().contentResolver.loadThumbnail(uri, size, null)
-      } else {
-        val options = BitmapFactory.Options().apply {
-          outWidth = size.width
-          outHeight = size.height
+      return@withContext DecodeMemoryGovernor.decode(size.width.toLong() * size.height * 4) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+          withCancellationSignal {AppUtil.getAppContext().contentResolver.loadThumbnail(uri, size, it)}
+        } else {
+          val kind = if (size.width <= MICRO_THUMBNAIL_SIZE && size.height <= MICRO_THUMBNAIL_SIZE) {
+            MediaStore.Images.Thumbnails.MICRO_KIND
+          } else {
+            MediaStore.Images.Thumbnails.MINI_KIND
+          }
+          MediaStore.Images.Thumbnails.getThumbnail(AppUtil.getAppContext().contentResolver, uri.lastPathSegment !!.toLong(), kind, null)
+            ?.let {fitThumbnail(it, size)}
         }
-        MediaStore.Images.Thumbnails.getThumbnail(
-          AppUtil.getAppContext().contentResolver, uri.lastPathSegment !!.toLong(),
-          MediaStore.Images.Thumbnails.MICRO_KIND, options
-        )
       }
     } catch (e: Exception) {
       
@@ -56,85 +118,109 @@ object ImageMediaUtil {
   }
 
   /**
-   * 加载相册
+   * 按比例缩小到 [size] 以内
    */
-  @SuppressLint("Range")
-  suspend fun loadBuckets() = withContext(Dispatchers.IO) {
-    var cursor: Cursor? = null
+  private fun fitThumbnail(bitmap: Bitmap, size: Size): Bitmap {
+    val scale = minOf(size.width / bitmap.width.toFloat(), size.height / bitmap.height.toFloat())
+    if (scale >= 1f) {
+      return bitmap
+    }
+    val scaled = BitmapPool.createScaledBitmap(
+      bitmap, maxOf(1, (bitmap.width * scale).toInt()), maxOf(1, (bitmap.height * scale).toInt())
+    )
+    BitmapPool.put(bitmap)
+    return scaled
+  }
+
+  /**
+   * 协程取消时通过 [CancellationSignal] 中止阻塞的查询, 阻塞期间由另一个协程监听取消
+   */
+  private suspend fun <T> withCancellationSignal(block: (CancellationSignal) -> T): T = coroutineScope {
+    val signal = CancellationSignal()
+    val watcher = launch(start = CoroutineStart.UNDISPATCHED) {
+      try {
+        awaitCancellation()
+      } finally {
+        signal.cancel()
+      }
+    }
     try {
-      val uri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI
-      val projection = arrayOf(MediaStore.Images.Media.BUCKET_ID, MediaStore.Images.Media.BUCKET_DISPLAY_NAME)
-      cursor = AppUtil.getAppContext().contentResolver.query(uri, projection, null, null, null)
+      block(signal)
+    } finally {
+      watcher.cancel()
+    }
+  }
+
+  private fun getMediaId(uri: Uri): Long? {
+    return uri.lastPathSegment?.toLongOrNull()
+  }
 
+  /**
+   * 加载相册, 结果由 [ImageBucketIndex] 缓存, 媒体库变化时自动更新
+   */
+  suspend fun loadBuckets(): List<BucketMediaEntity> = ImageBucketIndex.getBuckets()
+
+  /**
+   * 加载媒体库图片
+   */
+  suspend fun loadImages(bucketId: String): List<ImageMediaEntity> = withContext(Dispatchers.IO) {
+    val images = mutableListOf<ImageMediaEntity>()
+    var cursor: Cursor? = null
+
+    try {
+      val order = "${MediaStore.Images.Media.DATE_MODIFIED} desc"
+      cursor = AppUtil.getAppContext().contentResolver.query(
+        MediaStore.Images.Media.EXTERNAL_CONTENT_URI, IMAGE_PROJECTION, getImageSelection(bucketId), getImageSelectionArgs(bucketId), order
+      )
       if (cursor != null) {
-        val buckets = mutableListOf<BucketMediaEntity>()
+        val columns = ImageColumns(cursor)
         while (cursor.moveToNext()) {
-          val bucketId = cursor.getString(cursor.getColumnIndex(MediaStore.Images.Media.BUCKET_ID))
-          val bucketName = cursor.getString(cursor.getColumnIndex(MediaStore.Images.Media.BUCKET_DISPLAY_NAME))
-          if (bucketId != null && bucketName != null) {
-            buckets.add(BucketMediaEntity(bucketId, bucketName))
-          }
-        }
-        if (buckets.isNotEmpty()) {
-          return@withContext buckets.distinctBy {it.bucketId}
+          images.add(columns.read(cursor))
         }
       }
-
     } catch (e: Exception) {
       
       e.printStackTrace()
     } finally {
       cursor?.close()
     }
-    return@withContext emptyList()
+    return@withContext images
   }
 
   /**
-   * 加载媒体库图片
+   * 加载媒体库图片, 结果按列存储, 内容与 [loadImages] 相同
+   * 名称通过 Cursor.copyStringToBuffer 直接拷贝, 每行不创建 String 和 Uri; 适合图库很大时使用
    */
-  @SuppressLint("Range")
-  suspend fun loadImages(bucketId: String): List<ImageMediaEntity> = withContext(Dispatchers.IO) {
-    val SELECTION_MIME_TYPE =
-      "${MediaStore.Images.Media.MIME_TYPE}=? or ${MediaStore.Images.Media.MIME_TYPE}=? or ${MediaStore.Images.Media.MIME_TYPE}=?"
-    val SELECTION_WITH_BUCKET_ID = "${MediaStore.Images.Media.BUCKET_ID} =? and ( $SELECTION_MIME_TYPE )"
-
-    val images = mutableListOf<ImageMediaEntity>()
+  suspend fun loadImageTable(bucketId: String): ImageMediaTable = withContext(Dispatchers.IO) {
     var cursor: Cursor? = null
-
     try {
-      val projection = arrayOf(
-        MediaStore.Images.Media._ID,
-        MediaStore.Images.Media.DISPLAY_NAME,
-        MediaStore.Images.Media.TITLE,
-        MediaStore.Images.Media.MIME_TYPE,
-        MediaStore.Images.Media.SIZE,
-        MediaStore.Images.Media.WIDTH,
-        MediaStore.Images.Media.HEIGHT,
-        MediaStore.Images.Media.DATE_MODIFIED
-      )
-      val selection = if (bucketId.isBlank()) SELECTION_MIME_TYPE else SELECTION_WITH_BUCKET_ID
-      val selectionArgs = if (bucketId.isBlank()) arrayOf(MIME_TYPE_IMAGE_JPG, MIME_TYPE_IMAGE_JPEG, MIME_TYPE_IMAGE_PNG) else arrayOf(
-        bucketId,
-        MIME_TYPE_IMAGE_JPG,
-        MIME_TYPE_IMAGE_JPEG,
-        MIME_TYPE_IMAGE_PNG
-      )
       val order = "${MediaStore.Images.Media.DATE_MODIFIED} desc"
-      cursor =
-        AppUtil.getAppContext().contentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection, selection, selectionArgs, order)
+      cursor = AppUtil.getAppContext().contentResolver.query(
+        MediaStore.Images.Media.EXTERNAL_CONTENT_URI, IMAGE_PROJECTION, getImageSelection(bucketId), getImageSelectionArgs(bucketId), order
+      )
       if (cursor != null) {
+        val table = ImageMediaTable(cursor.count)
+        val id = cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID)
+        val title = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.TITLE)
+        val displayName = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DISPLAY_NAME)
+        val mimeType = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.MIME_TYPE)
+        val size = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.SIZE)
+        val width = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.WIDTH)
+        val height = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.HEIGHT)
+        val modified = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_MODIFIED)
+        val titleBuffer = CharArrayBuffer(64)
+        val displayNameBuffer = CharArrayBuffer(64)
+        val mimeTypeBuffer = CharArrayBuffer(16)
         while (cursor.moveToNext()) {
-          val id = cursor.getString(cursor.getColumnIndex(MediaStore.Images.Media._ID))
-          val title = cursor.getString(cursor.getColumnIndex(MediaStore.Images.Media.TITLE))
-          val displayName = cursor.getString(cursor.getColumnIndex(MediaStore.Images.Media.DISPLAY_NAME))
-          val mimetype = cursor.getString(cursor.getColumnIndex(MediaStore.Images.Media.MIME_TYPE))
-          val size = cursor.getLong(cursor.getColumnIndex(MediaStore.Images.Media.SIZE))
-          val width = cursor.getInt(cursor.getColumnIndex(MediaStore.Images.Media.WIDTH))
-          val height = cursor.getInt(cursor.getColumnIndex(MediaStore.Images.Media.HEIGHT))
-          val modified = cursor.getLong(cursor.getColumnIndex(MediaStore.Images.Media.DATE_MODIFIED))
-          val uri = Uri.withAppendedPath(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id)
-          images.add(ImageMediaEntity(id, title, displayName, mimetype, uri, size, width, height, modified))
+          cursor.copyStringToBuffer(title, titleBuffer)
+          cursor.copyStringToBuffer(displayName, displayNameBuffer)
+          cursor.copyStringToBuffer(mimeType, mimeTypeBuffer)
+          table.add(
+            cursor.getLong(id), titleBuffer, displayNameBuffer, mimeTypeBuffer,
+            cursor.getLong(size), cursor.getInt(width), cursor.getInt(height), cursor.getLong(modified)
+          )
         }
+        return@withContext table
       }
     } catch (e: Exception) {
       
@@ -142,66 +228,276 @@ object ImageMediaUtil {
     } finally {
       cursor?.close()
     }
-    return@withContext images
+    return@withContext ImageMediaTable(0)
   }
 
   /**
-   * 插入图片
+   * 分页加载媒体库图片, 按修改时间倒序, 第一页 [firstPageSize] 条, 之后每页 [pageSize] 条
+   * 以上一页最后一条的 (DATE_MODIFIED, _ID) 作为下一页的起点(keyset分页), 翻页不需要跳过已读的行;
+   * API 30 及以上通过 QUERY_ARG_LIMIT, 以下通过 limit 参数限制查询的行数
+   */
+  fun loadImagePages(
+    bucketId: String,
+    firstPageSize: Int = FIRST_PAGE_SIZE,
+    pageSize: Int = PAGE_SIZE
+  ): Flow<List<ImageMediaEntity>> = flow {
+    var after: ImageMediaEntity? = null
+    var limit = firstPageSize
+    while (true) {
+      val page = queryImagePage(bucketId, after, limit)
+      if (page.isEmpty()) {
+        break
+      }
+      emit(page)
+      if (page.size < limit) {
+        break
+      }
+      after = page.last()
+      limit = pageSize
+    }
+  }.flowOn(Dispatchers.IO)
+
+  /**
+   * 查询 [after] 之后的最多 [limit] 条, 查询失败时返回空列表
    */
-  suspend fun saveImageToMediaStore(path: String) {
-    saveImageToMediaStore(File(path))
+  private fun queryImagePage(bucketId: String, after: ImageMediaEntity?, limit: Int): List<ImageMediaEntity> {
+    var selection = getImageSelection(bucketId)
+    var selectionArgs = getImageSelectionArgs(bucketId)
+    if (after != null) {
+      selection = "($selection) and (${MediaStore.Images.Media.DATE_MODIFIED} <? or " +
+        "(${MediaStore.Images.Media.DATE_MODIFIED} =? and ${MediaStore.Images.Media._ID} <?))"
+      selectionArgs += arrayOf(after.modified.toString(), after.modified.toString(), after.id)
+    }
+    val order = "${MediaStore.Images.Media.DATE_MODIFIED} desc, ${MediaStore.Images.Media._ID} desc"
+    val images = ArrayList<ImageMediaEntity>(limit)
+    try {
+      val resolver = AppUtil.getAppContext().contentResolver
+      val cursor = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+        resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, IMAGE_PROJECTION, Bundle().apply {
+          putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection)
+          putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, selectionArgs)
+          putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, order)
+          putInt(ContentResolver.QUERY_ARG_LIMIT, limit)
+        }, null)
+      } else {
+        //API 30 以下 MediaProvider 忽略 QUERY_ARG_LIMIT, 并且统计行数时会扫描剩余的所有行, 只能使用 limit 参数
+        val uri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI.buildUpon().appendQueryParameter("limit", limit.toString()).build()
+        resolver.query(uri, IMAGE_PROJECTION, selection, selectionArgs, order)
+      }
+      cursor?.use {
+        val columns = ImageColumns(it)
+        //不支持 LIMIT 时也只读取 limit 条
+        while (images.size < limit && it.moveToNext()) {
+          images.add(columns.read(it))
+        }
+      }
+    } catch (e: Exception) {
+      
+      e.printStackTrace()
+    }
+    return images
+  }
+
+  internal fun getImageSelection(bucketId: String): String {
+    val selectionMimeType =
+      "${MediaStore.Images.Media.MIME_TYPE}=? or ${MediaStore.Images.Media.MIME_TYPE}=? or ${MediaStore.Images.Media.MIME_TYPE}=?"
+    return if (bucketId.isBlank()) selectionMimeType else "${MediaStore.Images.Media.BUCKET_ID} =? and ( $selectionMimeType )"
+  }
+
+  internal fun getImageSelectionArgs(bucketId: String): Array<String> {
+    return if (bucketId.isBlank()) {
+      arrayOf(MIME_TYPE_IMAGE_JPG, MIME_TYPE_IMAGE_JPEG, MIME_TYPE_IMAGE_PNG)
+    } else {
+      arrayOf(bucketId, MIME_TYPE_IMAGE_JPG, MIME_TYPE_IMAGE_JPEG, MIME_TYPE_IMAGE_PNG)
+    }
+  }
+
+  /**
+   * 每次查询只查找一次列序号
+   */
+  internal class ImageColumns(cursor: Cursor) {
+    private val id = cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID)
+    private val title = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.TITLE)
+    private val displayName = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DISPLAY_NAME)
+    private val mimeType = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.MIME_TYPE)
+    private val size = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.SIZE)
+    private val width = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.WIDTH)
+    private val height = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.HEIGHT)
+    private val modified = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_MODIFIED)
+
+    fun read(cursor: Cursor): ImageMediaEntity {
+      val id = cursor.getString(id)
+      val uri = Uri.withAppendedPath(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id)
+      return ImageMediaEntity(
+        id, cursor.getString(title) ?: "", cursor.getString(displayName) ?: "", cursor.getString(mimeType) ?: "", uri,
+        cursor.getLong(size), cursor.getInt(width), cursor.getInt(height), cursor.getLong(modified)
+      )
+    }
   }
 
   /**
    * 插入图片
    */
-  suspend fun saveImageToMediaStore(file: File) {
-    saveImageToMediaStore(BitmapFactory.decodeFile(file.absolutePath), file.nameWithoutExtension)
+  suspend fun saveImageToMediaStore(path: String) = saveImageToMediaStore(File(path))
+
+  /**
+   * 插入图片, 直接复制原文件, 保留原格式和元数据
+   * @param format 需要转换格式时传入, 与原格式不同时才解码再编码
+   */
+  suspend fun saveImageToMediaStore(file: File, format: ImageOutputFormat? = null): Uri? = withContext(Dispatchers.IO) {
+    if (! file.exists()) {
+      return@withContext null
+    }
+    val options = BitmapFactory.Options().apply {
+      inJustDecodeBounds = true
+    }
+    BitmapFactory.decodeFile(file.absolutePath, options)
+    val mimeType = options.outMimeType ?: return@withContext null
+    if (format != null && ! format.resolve().mimeType.equals(mimeType, true)) {
+      val bitmap = DecodeMemoryGovernor.decode(options.outWidth.toLong() * options.outHeight * 4) {
+        BitmapFactory.decodeFile(file.absolutePath)
+      } ?: return@withContext null
+      try {
+        return@withContext saveImageToMediaStore(bitmap, file.nameWithoutExtension, format)
+      } finally {
+        BitmapPool.put(bitmap)
+      }
+    }
+    val extension = file.extension.ifEmpty {mimeType.substringAfter('/')}
+    return@withContext insertImage(file.nameWithoutExtension, extension, mimeType) {uri ->
+      //通过 FileChannel 复制, 不经过Java堆
+      AppUtil.getAppContext().contentResolver.openFileDescriptor(uri, "w")?.use {descriptor ->
+        FileOutputStream(descriptor.fileDescriptor).channel.use {output ->
+          FileInputStream(file).channel.use {input ->
+            val size = input.size()
+            var position = 0L
+            while (position < size) {
+              position += input.transferTo(position, size - position, output)
+            }
+            output.force(false)
+          }
+        }
+      } ?: throw FileNotFoundException("无法写入: $uri")
+    }
   }
 
   /**
    * 插入图片
+   * @param format 输出格式, 设备不支持时退回 JPEG
    */
-  suspend fun saveImageToMediaStore(bitmap: Bitmap, displayName: String) = withContext(Dispatchers.IO) {
+  suspend fun saveImageToMediaStore(
+    bitmap: Bitmap,
+    displayName: String,
+    format: ImageOutputFormat = ImageOutputFormat.JPEG
+  ): Uri? = withContext(Dispatchers.IO) {
+    val outputFormat = format.resolve()
+    return@withContext insertImage(displayName, outputFormat.extension, outputFormat.mimeType) {uri ->
+      AppUtil.getAppContext().contentResolver.openOutputStream(uri)?.use {
+        if (! outputFormat.encode(bitmap, outputFormat.defaultQuality, it)) {
+          throw IOException("编码失败: $outputFormat")
+        }
+        it.flush()
+      } ?: throw FileNotFoundException("无法写入: $uri")
+    }
+  }
+
+  /**
+   * 插入媒体库并写入内容, API 29 及以上写入期间标记为 IS_PENDING, 写入失败时删除
+   */
+  private inline fun insertImage(displayName: String, extension: String, mimeType: String, write: (Uri) -> Unit): Uri? {
+    val resolver = AppUtil.getAppContext().contentResolver
     val volumeName = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) MediaStore.VOLUME_EXTERNAL_PRIMARY else MediaStore.VOLUME_EXTERNAL
     val contentUri = MediaStore.Images.Media.getContentUri(volumeName)
-    return@withContext AppUtil.getAppContext().contentResolver.insert(contentUri, ContentValues().apply {
+    val contentValue = ContentValues().apply {
       put(MediaStore.Images.Media.TITLE, displayName)
-      put(MediaStore.Images.Media.DISPLAY_NAME, "${displayName}.jpg")
-      put(MediaStore.Images.Media.MIME_TYPE, MIME_TYPE_IMAGE_JPEG)
+      put(MediaStore.Images.Media.DISPLAY_NAME, "${displayName}.${extension}")
+      put(MediaStore.Images.Media.MIME_TYPE, mimeType)
       put(MediaStore.Images.Media.DATE_ADDED, System.currentTimeMillis())
       put(MediaStore.Images.Media.DATE_TAKEN, System.currentTimeMillis())
       if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
         val relativePath = "${Environment.DIRECTORY_DCIM}/ClassIn"
         put(MediaStore.MediaColumns.RELATIVE_PATH, relativePath)
+        // 锁定占有
+        put(MediaStore.Images.Media.IS_PENDING, 1)
       } else {
         val dataDir = File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM), "ClassIn")
         if (! dataDir.exists()) {
           dataDir.mkdirs()
         }
-        put(MediaStore.MediaColumns.DATA, "${dataDir.absolutePath}/${displayName}.jpg")
+        put(MediaStore.MediaColumns.DATA, "${dataDir.absolutePath}/${displayName}.${extension}")
       }
-    })?.also {uri ->
-      try {
-        AppUtil.getAppContext().contentResolver.openOutputStream(uri)?.use {
-          bitmap.compress(Bitmap.CompressFormat.JPEG, 100, it)
-          it.flush()
-        }
-      } catch (e: Exception) {
-        
-        e.printStackTrace()
-        AppUtil.getAppContext().contentResolver.delete(uri, null, null)
+    }
+    val uri = resolver.insert(contentUri, contentValue) ?: return null
+    try {
+      write(uri)
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+        //释放占有
+        contentValue.clear()
+        contentValue.put(MediaStore.Images.Media.IS_PENDING, 0)
+        resolver.update(uri, contentValue, null, null)
       }
+      return uri
+    } catch (e: Exception) {
+      
+      e.printStackTrace()
+      resolver.delete(uri, null, null)
     }
+    return null
   }
 
   /**
-   * 打开图片
+   * 打开图片, 原尺寸解码
+   * 解码时复用 [BitmapPool] 中的Bitmap, 使用完毕后通过 BitmapPool.put 放回
    */
-  suspend fun openImage(uri: Uri) = withContext(Dispatchers.IO) {
+  suspend fun openImage(uri: Uri) = openImage(uri, Int.MAX_VALUE, Int.MAX_VALUE)
+
+  /**
+   * 打开图片, 按比例缩小到 [maxWidth] x [maxHeight] 以内, 所有路径都按Exif方向旋转, 尺寸为旋转后的尺寸
+   * 先读取尺寸, API 28 及以上用 ImageDecoder 直接解码到目标尺寸, 以下按 inSampleSize 采样, 结果不小于目标尺寸
+   * 解码时复用 [BitmapPool] 中的Bitmap, 使用完毕后通过 BitmapPool.put 放回
+   * @return 解码预算只在解码期间占用, 不绑定到返回的Bitmap上
+   */
+  suspend fun openImage(uri: Uri, maxWidth: Int, maxHeight: Int): Bitmap? = withContext(Dispatchers.IO) {
+    val source = ImageSource.of(uri)
     try {
-      return@withContext AppUtil.getAppContext().contentResolver.openInputStream(uri)?.let {
-        BitmapFactory.decodeStream(it)
+      source.withDescriptor {
+        val options = BitmapFactory.Options().apply {
+          inJustDecodeBounds = true
+        }
+        source.decode(options)
+        val width = options.outWidth
+        val height = options.outHeight
+        if (width <= 0 || height <= 0) {
+          return@withContext null
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+          //旋转不改变像素数, 目标尺寸的像素数不超过原图和 maxWidth * maxHeight
+          val bytes = minOf(width.toLong() * height, maxWidth.toLong() * maxHeight) * 4
+          return@withContext DecodeMemoryGovernor.withReservation(bytes) {
+            decodeToFit(source, maxWidth, maxHeight)
+          }
+        }
+        val orientation = readOrientation(source)
+        //旋转90度或270度时, 原图的宽对应显示的高
+        val transposed = orientation in ExifInterface.ORIENTATION_TRANSPOSE .. ExifInterface.ORIENTATION_ROTATE_270
+        val fitWidth = if (transposed) maxHeight else maxWidth
+        val fitHeight = if (transposed) maxWidth else maxHeight
+        val scale = minOf(1f, fitWidth / width.toFloat(), fitHeight / height.toFloat())
+        val targetWidth = maxOf(1, (width * scale).roundToInt())
+        val targetHeight = maxOf(1, (height * scale).roundToInt())
+        options.inJustDecodeBounds = false
+        options.inSampleSize = calculateInSampleSize(width, height, targetWidth, targetHeight)
+        val sampleSize = options.inSampleSize
+        val sampledBytes = ((width + sampleSize - 1) / sampleSize).toLong() * ((height + sampleSize - 1) / sampleSize) * 4
+        //需要旋转时采样结果和旋转结果同时存在
+        val bytes = if (orientation in ExifInterface.ORIENTATION_FLIP_HORIZONTAL .. ExifInterface.ORIENTATION_ROTATE_270) {
+          sampledBytes * 2
+        } else {
+          sampledBytes
+        }
+        return@withContext DecodeMemoryGovernor.withReservation(bytes) {
+          BitmapPool.decodeWithPool(options, width, height) {source.decode(it)}?.let {orientBitmap(it, orientation)}
+        }
       }
     } catch (e: Exception) {
       
@@ -209,4 +505,94 @@ object ImageMediaUtil {
     }
     return@withContext null
   }
-}
\ No newline at end of file
+
+  /**
+   * 分块解码, 用于放大查看, 只解码 [region] 区域并采样到不小于 [maxWidth] x [maxHeight]
+   * 连续解码同一张图时使用 [ImageRegionLoader] 复用解码器
+   */
+  suspend fun openImageRegion(uri: Uri, region: Rect, maxWidth: Int, maxHeight: Int): Bitmap? {
+    val source = ImageSource.of(uri)
+    return try {
+      ImageRegionLoader(source).use {it.decodeRegion(region, maxWidth, maxHeight)}
+    } catch (e: Exception) {
+      
+      e.printStackTrace()
+      null
+    }
+  }
+
+  /**
+   * 采样后的尺寸不小于目标尺寸的最大采样率(2的幂)
+   */
+  internal fun calculateInSampleSize(width: Int, height: Int, targetWidth: Int, targetHeight: Int): Int {
+    var sampleSize = 1
+    while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+      sampleSize *= 2
+    }
+    return sampleSize
+  }
+
+  /**
+   * ImageDecoder 按Exif方向旋转, OnHeaderDecodedListener 中的尺寸和 setTargetSize 都是旋转后的尺寸
+   * 可变的软件Bitmap, 才能放回 [BitmapPool] 复用
+   */
+  @RequiresApi(Build.VERSION_CODES.P)
+  private fun decodeToFit(source: ImageSource, maxWidth: Int, maxHeight: Int): Bitmap {
+    return ImageDecoder.decodeBitmap(source.createDecoderSource()) {decoder, info, _ ->
+      val width = info.size.width
+      val height = info.size.height
+      val scale = minOf(1f, maxWidth / width.toFloat(), maxHeight / height.toFloat())
+      if (scale < 1f) {
+        decoder.setTargetSize(maxOf(1, (width * scale).roundToInt()), maxOf(1, (height * scale).roundToInt()))
+      }
+      decoder.allocator = ImageDecoder.ALLOCATOR_SOFTWARE
+      decoder.isMutableRequired = true
+    }
+  }
+
+  /**
+   * 读取Exif方向, 无法读取时按正常方向处理
+   */
+  private fun readOrientation(source: ImageSource): Int {
+    return try {
+      source.openInputStream().use {
+        ExifInterface(it).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)
+      }
+    } catch (e: IOException) {
+      
+      e.printStackTrace()
+      ExifInterface.ORIENTATION_NORMAL
+    }
+  }
+
+  /**
+   * 按Exif方向旋转/翻转, 与 ImageDecoder 的结果一致; 结果Bitmap从 [BitmapPool] 中获取, [bitmap] 放回池中
+   */
+  private fun orientBitmap(bitmap: Bitmap, orientation: Int): Bitmap {
+    val matrix = Matrix()
+    when(orientation) {
+      ExifInterface.ORIENTATION_FLIP_HORIZONTAL -> matrix.setScale(- 1f, 1f)
+      ExifInterface.ORIENTATION_ROTATE_180 -> matrix.setRotate(180f)
+      ExifInterface.ORIENTATION_FLIP_VERTICAL -> matrix.setScale(1f, - 1f)
+      ExifInterface.ORIENTATION_TRANSPOSE -> matrix.apply {setRotate(90f); postScale(- 1f, 1f)}
+      ExifInterface.ORIENTATION_ROTATE_90 -> matrix.setRotate(90f)
+      ExifInterface.ORIENTATION_TRANSVERSE -> matrix.apply {setRotate(- 90f); postScale(- 1f, 1f)}
+      ExifInterface.ORIENTATION_ROTATE_270 -> matrix.setRotate(- 90f)
+      else -> return bitmap
+    }
+    //变换后移回原点
+    val bounds = RectF(0f, 0f, bitmap.width.toFloat(), bitmap.height.toFloat())
+    matrix.mapRect(bounds)
+    matrix.postTranslate(- bounds.left, - bounds.top)
+    val transposed = orientation in ExifInterface.ORIENTATION_TRANSPOSE .. ExifInterface.ORIENTATION_ROTATE_270
+    val target = BitmapPool.getOrCreate(
+      if (transposed) bitmap.height else bitmap.width,
+      if (transposed) bitmap.width else bitmap.height,
+      bitmap.config ?: Bitmap.Config.ARGB_8888
+    )
+    target.eraseColor(Color.TRANSPARENT)
+    Canvas(target).drawBitmap(bitmap, matrix, Paint(Paint.FILTER_BITMAP_FLAG))
+    BitmapPool.put(bitmap)
+    return target
+  }
+}
@@ -0,0 +1,111 @@
+package com.treasure.basic.utils
+
+import android.graphics.Bitmap
+import android.media.MediaCodecList
+import android.media.MediaFormat
+import android.os.Build
+import androidx.annotation.RequiresApi
+import androidx.heifwriter.HeifWriter
+import java.io.File
+import java.io.OutputStream
+
+/**
+ * 图片输出格式
+ * @param defaultQuality 默认质量, 不需要质量压缩时使用
+ */
+enum class ImageOutputFormat(val mimeType: String, val extension: String, val defaultQuality: Int) {
+
+  JPEG("image/jpeg", "jpg", 100),
+
+  /**
+   * API 30 及以上支持, 以下退回 JPEG
+   */
+  WEBP_LOSSY("image/webp", "webp", 90),
+
+  /**
+   * API 30 及以上支持, 以下退回 JPEG; 质量参数只影响编码耗时, 不影响画质
+   */
+  WEBP_LOSSLESS("image/webp", "webp", 100),
+
+  /**
+   * API 28 及以上且设备有 HEVC 硬件编码器时支持, 否则退回 JPEG
+   */
+  HEIF("image/heif", "heic", 90);
+
+  companion object {
+    private const val HEIF_TIMEOUT_MS = 5000L
+
+    private val hasHevcEncoder: Boolean by lazy {
+      MediaCodecList(MediaCodecList.REGULAR_CODECS).codecInfos.any {info ->
+        info.isEncoder && info.supportedTypes.any {it.equals(MediaFormat.MIMETYPE_VIDEO_HEVC, true)}
+      }
+    }
+  }
+
+  /**
+   * 当前设备是否支持
+   */
+  val isSupported: Boolean
+    get() = when(this) {
+      JPEG -> true
+      WEBP_LOSSY, WEBP_LOSSLESS -> Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+      HEIF -> Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && hasHevcEncoder
+    }
+
+  /**
+   * 当前设备不支持时退回 JPEG
+   */
+  fun resolve(): ImageOutputFormat = if (isSupported) this else JPEG
+
+  /**
+   * 无损格式, 质量参数不影响体积上限的搜索结果, 不需要质量压缩
+   */
+  val isLossless: Boolean
+    get() = this == WEBP_LOSSLESS
+
+  /**
+   * 编码到输出流, 当前设备不支持时按 [resolve] 的结果编码为 JPEG
+   * @return 是否编码成功
+   */
+  fun encode(bitmap: Bitmap, quality: Int, out: OutputStream): Boolean {
+    val format = resolve()
+    return when {
+      format == HEIF && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P -> encodeHeif(bitmap, quality, out)
+      (format == WEBP_LOSSY || format == WEBP_LOSSLESS) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R -> {
+        bitmap.compress(getWebpFormat(format == WEBP_LOSSLESS), quality, out)
+      }
+      else -> bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out)
+    }
+  }
+
+  @RequiresApi(Build.VERSION_CODES.R)
+  private fun getWebpFormat(lossless: Boolean): Bitmap.CompressFormat {
+    return if (lossless) Bitmap.CompressFormat.WEBP_LOSSLESS else Bitmap.CompressFormat.WEBP_LOSSY
+  }
+
+  /**
+   * HeifWriter 只能写入文件, 先写到缓存目录再拷贝到输出流
+   */
+  @RequiresApi(Build.VERSION_CODES.P)
+  private fun encodeHeif(bitmap: Bitmap, quality: Int, out: OutputStream): Boolean {
+    val temp = File.createTempFile("encode", ".heic", FileUtil.getExternalCacheDir("heif"))
+    try {
+      HeifWriter.Builder(temp.absolutePath, bitmap.width, bitmap.height, HeifWriter.INPUT_MODE_BITMAP)
+        .setQuality(quality)
+        .setMaxImages(1)
+        .build()
+        .use {writer ->
+          writer.start()
+          writer.addBitmap(bitmap)
+          writer.stop(HEIF_TIMEOUT_MS)
+        }
+      temp.inputStream().use {it.copyTo(out)}
+      return true
+    } catch (e: Exception) {
+      e.printStackTrace()
+      return false
+    } finally {
+      temp.delete()
+    }
+  }
+}
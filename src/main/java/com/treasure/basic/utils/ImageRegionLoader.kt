@@ -0,0 +1,92 @@
+package com.treasure.basic.utils
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Rect
+import kotlinx.coroutines.withContext
+import java.io.Closeable
+import java.io.IOException
+
+/**
+ * 大图查看器的分块解码, 放大时只解码可见区域
+ * 同一个实例复用一个 BitmapRegionDecoder, 使用完毕后调用 [close]
+ */
+class ImageRegionLoader(private val source: ImageSource) : Closeable {
+
+  private var decoder: BitmapRegionDecoder? = null
+  private var closed = false
+
+  /**
+   * 原图宽, 无法解码或已经关闭时为0
+   */
+  val width: Int
+    get() = openDecoder()?.width ?: 0
+
+  /**
+   * 原图高, 无法解码或已经关闭时为0
+   */
+  val height: Int
+    get() = openDecoder()?.height ?: 0
+
+  /**
+   * 解码 [region] 区域, 采样到不小于 [maxWidth] x [maxHeight] 的最小尺寸
+   * 解码时复用 [BitmapPool] 中的Bitmap, 使用完毕后通过 BitmapPool.put 放回
+   * @param region 原图坐标, 为存储方向, 不按Exif旋转; 超出部分会被裁掉
+   * @return 无法解码或已经关闭时返回null
+   */
+  suspend fun decodeRegion(region: Rect, maxWidth: Int, maxHeight: Int): Bitmap? = withContext(ImageDispatchers.IMAGE) {
+    try {
+      val decoder = openDecoder() ?: return@withContext null
+      val rect = Rect(region)
+      if (! rect.intersect(0, 0, decoder.width, decoder.height)) {
+        return@withContext null
+      }
+      val sampleSize = ImageMediaUtil.calculateInSampleSize(rect.width(), rect.height(), maxWidth, maxHeight)
+      //按解码结果的尺寸取复用的Bitmap, 大一圈的 inBitmap 不会被缩小, 右边和下边会留下上一次使用的像素
+      val sampledWidth = BitmapPool.getRegionSampledSize(rect.width(), sampleSize)
+      val sampledHeight = BitmapPool.getRegionSampledSize(rect.height(), sampleSize)
+      return@withContext DecodeMemoryGovernor.decode(sampledWidth.toLong() * sampledHeight * 4) {
+        val options = BitmapFactory.Options().apply {
+          inSampleSize = sampleSize
+          inMutable = true
+          inBitmap = BitmapPool.get(sampledWidth, sampledHeight, Bitmap.Config.ARGB_8888)
+        }
+        BitmapPool.decodeWithInBitmap(options) {
+          decoder.decodeRegion(rect, it)
+        }
+      }
+    } catch (e: IOException) {
+      
+      e.printStackTrace()
+    } catch (e: IllegalStateException) {
+      //解码过程中被另一个线程 close
+      e.printStackTrace()
+    }
+    return@withContext null
+  }
+
+  @Synchronized
+  override fun close() {
+    closed = true
+    decoder?.recycle()
+    decoder = null
+  }
+
+  @Synchronized
+  private fun openDecoder(): BitmapRegionDecoder? {
+    if (closed) {
+      return null
+    }
+    decoder?.let {
+      return it
+    }
+    return try {
+      source.newRegionDecoder().also {decoder = it}
+    } catch (e: IOException) {
+      
+      e.printStackTrace()
+      null
+    }
+  }
+}
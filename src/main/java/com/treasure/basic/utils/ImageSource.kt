@@ -0,0 +1,227 @@
+package com.treasure.basic.utils
+
+import android.content.ContentResolver
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.ImageDecoder
+import android.net.Uri
+import android.os.Build
+import android.os.ParcelFileDescriptor
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import androidx.annotation.RequiresApi
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * 待解码的图片来源: 本地文件或 content Uri
+ * Uri 通过 ContentResolver.openFileDescriptor 读取, 在 [acquire] 和 [release] 之间只打开一次,
+ * 读取边框和解码像素复用同一个文件描述符, 无需先拷贝到缓存目录
+ *
+ * 同一个实例不能在多个线程中同时解码
+ */
+sealed class ImageSource {
+
+  companion object {
+
+    @JvmStatic
+    fun of(file: File): ImageSource = FileSource(file)
+
+    @JvmStatic
+    @JvmOverloads
+    fun of(uri: Uri, resolver: ContentResolver = AppUtil.getAppContext().contentResolver): ImageSource {
+      return if (uri.scheme == ContentResolver.SCHEME_FILE && uri.path != null) FileSource(File(uri.path !!)) else UriSource(uri, resolver)
+    }
+  }
+
+  /**
+   * 唯一标识, 用于缓存key和错误信息
+   */
+  abstract val identity: String
+
+  /**
+   * 不含扩展名的名称
+   */
+  abstract val name: String
+
+  /**
+   * 本地文件来源时不为空
+   */
+  open val file: File?
+    get() = null
+
+  /**
+   * content Uri 来源时不为空
+   */
+  open val uri: Uri?
+    get() = null
+
+  /**
+   * 文件字节数, 未知时返回 -1
+   */
+  abstract fun length(): Long
+
+  /**
+   * 最后修改时间(ms), 未知时返回0
+   */
+  abstract fun lastModified(): Long
+
+  abstract fun decode(options: BitmapFactory.Options): Bitmap?
+
+  /**
+   * 打开新的输入流, 不影响解码使用的文件描述符
+   * @throws IOException 无法打开
+   */
+  abstract fun openInputStream(): InputStream
+
+  @RequiresApi(Build.VERSION_CODES.P)
+  abstract fun createDecoderSource(): ImageDecoder.Source
+
+  /**
+   * @throws IOException 不支持分块解码
+   */
+  abstract fun newRegionDecoder(): BitmapRegionDecoder
+
+  /**
+   * 打开并持有文件描述符, 与 [release] 成对调用, 可以嵌套
+   * @throws IOException 无法打开
+   */
+  open fun acquire() {}
+
+  open fun release() {}
+
+  override fun toString(): String = identity
+
+  private class FileSource(override val file: File) : ImageSource() {
+
+    override val identity: String
+      get() = file.absolutePath
+
+    override val name: String
+      get() = file.nameWithoutExtension
+
+    override fun length(): Long = file.length()
+
+    override fun lastModified(): Long = file.lastModified()
+
+    override fun decode(options: BitmapFactory.Options): Bitmap? = BitmapFactory.decodeFile(file.absolutePath, options)
+
+    override fun openInputStream(): InputStream = file.inputStream()
+
+    @RequiresApi(Build.VERSION_CODES.P)
+    override fun createDecoderSource(): ImageDecoder.Source = ImageDecoder.createSource(file)
+
+    override fun newRegionDecoder(): BitmapRegionDecoder {
+      val decoder = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+        BitmapRegionDecoder.newInstance(file.absolutePath)
+      } else {
+        @Suppress("DEPRECATION")
+        BitmapRegionDecoder.newInstance(file.absolutePath, false)
+      }
+      return decoder ?: throw IOException("不支持分块解码: $identity")
+    }
+  }
+
+  private class UriSource(override val uri: Uri, private val resolver: ContentResolver) : ImageSource() {
+
+    private var descriptor: ParcelFileDescriptor? = null
+    private var refCount = 0
+
+    override val identity: String
+      get() = uri.toString()
+
+    override val name: String
+      get() = uri.lastPathSegment?.substringBeforeLast('.') ?: "image"
+
+    /**
+     * 管道和部分不可定位的 provider 没有大小, statSize 为 -1
+     */
+    override fun length(): Long = useDescriptor {it.statSize}
+
+    override fun lastModified(): Long = useDescriptor {
+      try {
+        Os.fstat(it.fileDescriptor).st_mtime * 1000
+      } catch (e: ErrnoException) {
+        0L
+      }
+    }
+
+    /**
+     * decodeFileDescriptor 从当前位置开始读取, 返回时恢复原位置, 每次解码前都回到文件开头
+     */
+    override fun decode(options: BitmapFactory.Options): Bitmap? = useDescriptor {
+      rewind(it)
+      BitmapFactory.decodeFileDescriptor(it.fileDescriptor, null, options)
+    }
+
+    override fun openInputStream(): InputStream {
+      return resolver.openInputStream(uri) ?: throw FileNotFoundException("无法打开: $identity")
+    }
+
+    @RequiresApi(Build.VERSION_CODES.P)
+    override fun createDecoderSource(): ImageDecoder.Source = ImageDecoder.createSource(resolver, uri)
+
+    /**
+     * BitmapRegionDecoder 复制文件描述符, 释放后仍然可以使用
+     */
+    override fun newRegionDecoder(): BitmapRegionDecoder = useDescriptor {
+      rewind(it)
+      val decoder = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+        BitmapRegionDecoder.newInstance(it)
+      } else {
+        @Suppress("DEPRECATION")
+        BitmapRegionDecoder.newInstance(it.fileDescriptor, false)
+      }
+      decoder ?: throw IOException("不支持分块解码: $identity")
+    }
+
+    @Synchronized
+    override fun acquire() {
+      if (refCount == 0) {
+        descriptor = resolver.openFileDescriptor(uri, "r") ?: throw FileNotFoundException("无法打开: $identity")
+      }
+      refCount ++
+    }
+
+    @Synchronized
+    override fun release() {
+      if (refCount > 0 && -- refCount == 0) {
+        descriptor?.close()
+        descriptor = null
+      }
+    }
+
+    private inline fun <T> useDescriptor(block: (ParcelFileDescriptor) -> T): T {
+      acquire()
+      try {
+        return block(descriptor !!)
+      } finally {
+        release()
+      }
+    }
+
+    private fun rewind(descriptor: ParcelFileDescriptor) {
+      try {
+        Os.lseek(descriptor.fileDescriptor, 0, OsConstants.SEEK_SET)
+      } catch (e: ErrnoException) {
+        throw IOException("无法读取: $identity", e)
+      }
+    }
+  }
+}
+
+/**
+ * 在 [block] 执行期间持有文件描述符
+ */
+inline fun <T> ImageSource.withDescriptor(block: () -> T): T {
+  acquire()
+  try {
+    return block()
+  } finally {
+    release()
+  }
+}
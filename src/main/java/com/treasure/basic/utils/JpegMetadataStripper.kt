@@ -0,0 +1,310 @@
+package com.treasure.basic.utils
+
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * 逐段重写JPEG, 去掉不需要的元数据, 不解码像素
+ * 保留: JFIF(APP0)、ICC色彩配置(APP2)、Adobe(APP14)及所有图像数据段; Exif只保留方向
+ * 去掉: XMP、厂商数据、Exif缩略图、MPF、注释以及EOI之后附加的数据
+ */
+object JpegMetadataStripper {
+
+  private const val MARKER_SOI = 0xD8
+  private const val MARKER_EOI = 0xD9
+  private const val MARKER_SOS = 0xDA
+  private const val MARKER_TEM = 0x01
+  private const val MARKER_RST0 = 0xD0
+  private const val MARKER_RST7 = 0xD7
+  private const val MARKER_APP0 = 0xE0
+  private const val MARKER_APP1 = 0xE1
+  private const val MARKER_APP2 = 0xE2
+  private const val MARKER_APP14 = 0xEE
+  private const val MARKER_APP15 = 0xEF
+  private const val MARKER_COM = 0xFE
+  private const val TAG_ORIENTATION = 0x0112
+  private const val TYPE_SHORT = 3
+  private const val TIFF_OFFSET = 6 //"Exif\0\0" 之后为TIFF头
+  private const val CHUNK_SIZE = 16 * 1024
+  private const val FF = 0xFF.toByte()
+
+  private val EXIF_HEADER = byteArrayOf(0x45, 0x78, 0x69, 0x66, 0, 0)
+  private val ICC_HEADER = "ICC_PROFILE\u0000".toByteArray(Charsets.US_ASCII)
+
+  @JvmStatic
+  fun isJpeg(mimeType: String?): Boolean = mimeType == "image/jpeg" || mimeType == "image/jpg"
+
+  /**
+   * 只读取图像数据之前的段头, 计算可以去掉的字节数, 不包括EOI之后附加的数据
+   * @throws IOException 不是JPEG或数据不完整
+   */
+  @JvmStatic
+  fun measure(input: InputStream): Long {
+    return process(DataInputStream(input.buffered(CHUNK_SIZE)), null)
+  }
+
+  /**
+   * 去掉元数据后写入 [output], 不会关闭 [output]
+   * @return 写入的字节数
+   * @throws IOException 不是JPEG或数据不完整
+   */
+  @JvmStatic
+  fun strip(input: InputStream, output: OutputStream): Long {
+    val counter = CountingOutputStream(output)
+    val out = BufferedOutputStream(counter, 16 * 1024)
+    process(DataInputStream(input.buffered(CHUNK_SIZE)), out)
+    out.flush()
+    return counter.count
+  }
+
+  /**
+   * @param out 为空时只统计, 遇到图像数据即停止
+   * @return 去掉的字节数
+   */
+  private fun process(input: DataInputStream, out: OutputStream?): Long {
+    if (input.readUnsignedShort() != 0xFF00 or MARKER_SOI) {
+      throw IOException("不是JPEG")
+    }
+    out?.writeMarker(MARKER_SOI)
+    var dropped = 0L
+    var marker = readMarker(input)
+    while (true) {
+      if (marker == MARKER_EOI) {
+        out?.writeMarker(MARKER_EOI)
+        return dropped
+      }
+      if (marker == MARKER_TEM || marker in MARKER_RST0..MARKER_RST7) {
+        out?.writeMarker(marker)
+        marker = readMarker(input)
+        continue
+      }
+      val length = input.readUnsignedShort()
+      if (length < 2) {
+        throw IOException("JPEG段长度错误: $length")
+      }
+      val bodyLength = length - 2
+      when {
+        marker == MARKER_SOS -> {
+          if (out == null) {
+            return dropped
+          }
+          out.writeMarker(marker)
+          out.writeLength(length)
+          copy(input, out, bodyLength)
+          marker = copyEntropyData(input, out)
+          continue
+        }
+        marker == MARKER_APP1 || marker == MARKER_APP2 -> {
+          val body = ByteArray(bodyLength)
+          input.readFully(body)
+          val kept = when {
+            marker == MARKER_APP2 && startsWith(body, ICC_HEADER) -> body
+            marker == MARKER_APP1 && startsWith(body, EXIF_HEADER) -> readOrientation(body).let {
+              if (it > 1) createOrientationExif(it) else null
+            }
+            else -> null
+          }
+          if (kept != null) {
+            out?.writeMarker(marker)
+            out?.writeLength(kept.size + 2)
+            out?.write(kept)
+          }
+          dropped += length + 2 - (if (kept != null) kept.size + 4 else 0)
+        }
+        shouldKeep(marker) -> {
+          out?.writeMarker(marker)
+          out?.writeLength(length)
+          copy(input, out, bodyLength)
+        }
+        else -> {
+          skip(input, bodyLength)
+          dropped += length + 2
+        }
+      }
+      marker = readMarker(input)
+    }
+  }
+
+  private fun shouldKeep(marker: Int): Boolean {
+    return when(marker) {
+      MARKER_APP0, MARKER_APP14 -> true
+      MARKER_COM -> false
+      in MARKER_APP0..MARKER_APP15 -> false
+      else -> true
+    }
+  }
+
+  /**
+   * 读取下一个标记, 跳过填充的0xFF
+   */
+  private fun readMarker(input: DataInputStream): Int {
+    if (input.readUnsignedByte() != 0xFF) {
+      throw IOException("JPEG标记错误")
+    }
+    var marker = input.readUnsignedByte()
+    while (marker == 0xFF) {
+      marker = input.readUnsignedByte()
+    }
+    return marker
+  }
+
+  /**
+   * 拷贝扫描数据, 0xFF00 和 RSTn 属于扫描数据
+   * 按块读取后查找0xFF, 找到其他标记时回退到标记之后
+   * @return 扫描数据之后的标记
+   */
+  private fun copyEntropyData(input: DataInputStream, out: OutputStream): Int {
+    val chunk = ByteArray(CHUNK_SIZE)
+    while (true) {
+      input.mark(CHUNK_SIZE)
+      val read = input.read(chunk)
+      if (read < 0) {
+        throw EOFException()
+      }
+      var i = 0
+      while (i < read) {
+        if (chunk[i] != FF) {
+          i ++
+          continue
+        }
+        var next = i + 1
+        while (next < read && chunk[next] == FF) {
+          next ++
+        }
+        if (next == read) {
+          //0xFF在块末尾, 从0xFF处重新读取
+          break
+        }
+        val marker = chunk[next].toInt() and 0xFF
+        if (marker == 0 || marker in MARKER_RST0..MARKER_RST7) {
+          i = next + 1
+          continue
+        }
+        out.write(chunk, 0, i)
+        input.reset()
+        skip(input, next + 1)
+        return marker
+      }
+      out.write(chunk, 0, i)
+      if (i == read) {
+        continue
+      }
+      input.reset()
+      skip(input, i)
+      if (i == 0) {
+        //整块都是填充的0xFF, 逐字节读取
+        val marker = readMarker(input)
+        if (marker != 0 && marker !in MARKER_RST0..MARKER_RST7) {
+          return marker
+        }
+        out.write(0xFF)
+        out.write(marker)
+      }
+    }
+  }
+
+  /**
+   * 读取Exif中IFD0的方向, 没有时返回0
+   */
+  private fun readOrientation(body: ByteArray): Int {
+    if (body.size < TIFF_OFFSET + 8) {
+      return 0
+    }
+    val littleEndian = body[TIFF_OFFSET] == 'I'.code.toByte()
+    fun u16(offset: Int): Int {
+      val a = body[offset].toInt() and 0xFF
+      val b = body[offset + 1].toInt() and 0xFF
+      return if (littleEndian) a or (b shl 8) else (a shl 8) or b
+    }
+    fun u32(offset: Int): Long {
+      val high = u16(if (littleEndian) offset + 2 else offset).toLong()
+      val low = u16(if (littleEndian) offset else offset + 2).toLong()
+      return (high shl 16) or low
+    }
+    val ifd = TIFF_OFFSET + u32(TIFF_OFFSET + 4)
+    if (ifd + 2 > body.size) {
+      return 0
+    }
+    val count = u16(ifd.toInt())
+    for (i in 0 until count) {
+      val entry = ifd.toInt() + 2 + i * 12
+      if (entry + 12 > body.size) {
+        return 0
+      }
+      if (u16(entry) == TAG_ORIENTATION && u16(entry + 2) == TYPE_SHORT) {
+        return u16(entry + 8)
+      }
+    }
+    return 0
+  }
+
+  /**
+   * 只包含方向的Exif, 大端序, IFD0只有一项
+   */
+  private fun createOrientationExif(orientation: Int): ByteArray {
+    return EXIF_HEADER + byteArrayOf(
+      0x4D, 0x4D, 0x00, 0x2A, // MM, 42
+      0x00, 0x00, 0x00, 0x08, // IFD0偏移
+      0x00, 0x01, // 项数
+      0x01, 0x12, 0x00, 0x03, 0x00, 0x00, 0x00, 0x01, // 方向, SHORT, 1个
+      (orientation shr 8).toByte(), orientation.toByte(), 0x00, 0x00,
+      0x00, 0x00, 0x00, 0x00 // 没有下一个IFD
+    )
+  }
+
+  private fun startsWith(body: ByteArray, prefix: ByteArray): Boolean {
+    if (body.size < prefix.size) {
+      return false
+    }
+    for (i in prefix.indices) {
+      if (body[i] != prefix[i]) {
+        return false
+      }
+    }
+    return true
+  }
+
+  private fun copy(input: DataInputStream, out: OutputStream?, length: Int) {
+    if (out == null) {
+      skip(input, length)
+      return
+    }
+    val buffer = ByteArray(minOf(length, 8 * 1024).coerceAtLeast(1))
+    var remaining = length
+    while (remaining > 0) {
+      val read = input.read(buffer, 0, minOf(remaining, buffer.size))
+      if (read < 0) {
+        throw EOFException()
+      }
+      out.write(buffer, 0, read)
+      remaining -= read
+    }
+  }
+
+  private fun skip(input: DataInputStream, length: Int) {
+    var remaining = length
+    while (remaining > 0) {
+      val skipped = input.skipBytes(remaining)
+      if (skipped <= 0) {
+        input.readUnsignedByte()
+        remaining --
+      } else {
+        remaining -= skipped
+      }
+    }
+  }
+
+  private fun OutputStream.writeMarker(marker: Int) {
+    write(0xFF)
+    write(marker)
+  }
+
+  private fun OutputStream.writeLength(length: Int) {
+    write(length shr 8)
+    write(length and 0xFF)
+  }
+}
@@ -26,22 +26,30 @@ object PictureUtil {
 
   /**
    * 保存Bitmap
+   * @param format 输出格式, 设备不支持时退回 JPEG
    */
   @JvmStatic
-  fun saveBitmap(mBitmap: Bitmap): String? {
+  @JvmOverloads
+  fun saveBitmap(mBitmap: Bitmap, format: ImageOutputFormat = ImageOutputFormat.JPEG): String? {
     val savePath = "/sdcard/ClassIn/"
+    val outputFormat = format.resolve()
     val filePic: File
     if (Environment.getExternalStorageState() == Environment.MEDIA_MOUNTED) {
       try {
-        filePic = File(savePath + UUID.randomUUID().toString() + ".jpg")
+        filePic = File(savePath + UUID.randomUUID().toString() + "." + outputFormat.extension)
         if (! filePic.exists()) {
           filePic.parentFile.mkdirs()
           filePic.createNewFile()
         }
         val fos = FileOutputStream(filePic)
-        mBitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos)
+        val encoded = outputFormat.encode(mBitmap, outputFormat.defaultQuality, fos)
         fos.flush()
         fos.close()
+        if (! encoded) {
+          //编码失败时不保留空文件
+          filePic.delete()
+          return null
+        }
       } catch (e: IOException) {
         // TODO Auto-generated catch block
         
@@ -59,7 +67,9 @@ object PictureUtil {
     val src = sv.drawingCache
     var dst: Bitmap? = null
     if (src != null && ! src.isRecycled) {
-      dst = Bitmap.createScaledBitmap(src, dstWidth, dstHeight, true)
+      dst = DecodeMemoryGovernor.decodeNow(dstWidth.toLong() * dstHeight * 4) {
+        BitmapPool.createScaledBitmap(src, dstWidth, dstHeight)
+      }
     }
     sv.isDrawingCacheEnabled = false
     var snapshot: ByteArray? = null
@@ -73,7 +83,7 @@ object PictureUtil {
         
         e.printStackTrace()
       }
-      dst.recycle()
+      BitmapPool.put(dst)
     }
     return snapshot
   }
@@ -98,7 +108,9 @@ object PictureUtil {
       if (x + width > src.width) {
         width = src.width - x
       }
-      dst = Bitmap.createBitmap(src, x, y, width, height)
+      dst = DecodeMemoryGovernor.decodeNow(width.toLong() * height * 4) {
+        BitmapPool.createBitmap(src, x, y, width, height)
+      }
     }
     sv.isDrawingCacheEnabled = false
     var snapshot: ByteArray? = null
@@ -112,7 +124,7 @@ object PictureUtil {
         
         e.printStackTrace()
       }
-      dst.recycle()
+      BitmapPool.put(dst)
     }
     return snapshot
   }
@@ -124,7 +136,9 @@ object PictureUtil {
     val src = sv.drawingCache
     var dst: Bitmap? = null
     if (src != null && ! src.isRecycled) {
-      dst = Bitmap.createScaledBitmap(src, dstWidth, dstHeight, true)
+      dst = DecodeMemoryGovernor.decodeNow(dstWidth.toLong() * dstHeight * 4) {
+        BitmapPool.createScaledBitmap(src, dstWidth, dstHeight)
+      }
       src.recycle()
     }
     sv.isDrawingCacheEnabled = false
@@ -144,6 +158,8 @@ object PictureUtil {
         
         e.printStackTrace()
         return null
+      } finally {
+        BitmapPool.put(dst)
       }
       return filePic.absolutePath
     }
@@ -160,19 +176,18 @@ object PictureUtil {
     if (TextUtils.isEmpty(imagePath)) {
       return 2.0f
     }
-    var bitmap: Bitmap? = null
-    try {
-      bitmap = BitmapFactory.decodeFile(imagePath)
-    } catch (error: OutOfMemoryError) {
-      error.printStackTrace()
+    //只需要宽高, 不解码像素
+    val options = BitmapFactory.Options().apply {
+      inJustDecodeBounds = true
     }
-    if (bitmap == null) {
+    BitmapFactory.decodeFile(imagePath, options)
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
       return 2.0f
     }
 
     // 拿到图片的宽和高
-    val dw = bitmap.width
-    val dh = bitmap.height
+    val dw = options.outWidth
+    val dh = options.outHeight
     val wm = (context as Activity).windowManager
     val width = wm.defaultDisplay.width
     val height = wm.defaultDisplay.height
@@ -193,7 +208,6 @@ object PictureUtil {
     if (dw > width && dh > height) {
       scale = width * 1.0f / dw
     }
-    bitmap.recycle()
     return scale
   }
 }
\ No newline at end of file
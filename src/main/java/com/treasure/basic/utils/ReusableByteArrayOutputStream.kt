@@ -0,0 +1,27 @@
+package com.treasure.basic.utils
+
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileOutputStream
+
+/**
+ * 可重复使用的字节输出流
+ * [reset] 后保留已扩容的缓冲区, 多次编码时不会重复分配; 通过 [buffer] 直接读取内部数据, 避免 toByteArray 的拷贝
+ */
+class ReusableByteArrayOutputStream(initialSize: Int = 64 * 1024) : ByteArrayOutputStream(initialSize) {
+
+  /**
+   * 内部缓冲区, 有效数据为 [0, size())
+   */
+  fun buffer(): ByteArray = buf
+
+  /**
+   * 将有效数据写入文件
+   */
+  fun writeTo(file: File) {
+    file.parentFile?.mkdirs()
+    FileOutputStream(file).use {
+      it.write(buf, 0, count)
+    }
+  }
+}
@@ -0,0 +1,214 @@
+package com.treasure.basic.utils
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.util.LruCache
+import android.util.Size
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.DelicateCoroutinesApi
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.async
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.IOException
+
+/**
+ * 媒体库缩略图的两级缓存
+ * 内存按字节数LRU, 磁盘保存在 [FileUtil.getExternalThumbnailsDir], 以图片id、尺寸和修改时间为key;
+ * 同一个key的并发请求合并为一次加载. 列表第二次滑动时不再访问 ContentProvider
+ *
+ * 返回的Bitmap由缓存持有, 调用方不能 recycle 或放回 [BitmapPool]
+ */
+object ThumbnailCache {
+
+  private const val DIR_NAME = "media"
+  private const val JPEG_QUALITY = 85
+
+  private val memory = object : LruCache<String, Bitmap>((Runtime.getRuntime().maxMemory() / 16).toInt()) {
+    override fun sizeOf(key: String, value: Bitmap): Int = value.allocationByteCount
+  }
+  private val loading = HashMap<String, LoadTask>()
+  private val dir: File by lazy {File(FileUtil.getExternalThumbnailsDir(), DIR_NAME).apply {mkdirs()}}
+  private var diskSize = - 1L
+
+  /**
+   * 磁盘缓存上限, 默认32MB
+   */
+  @JvmStatic
+  var maxDiskSize = 32 * 1024 * 1024L
+
+  @JvmStatic
+  var memoryHitCount = 0L
+    private set
+
+  @JvmStatic
+  var diskHitCount = 0L
+    private set
+
+  @JvmStatic
+  var missCount = 0L
+    private set
+
+  /**
+   * 合并到其他请求的次数
+   */
+  @JvmStatic
+  var coalescedCount = 0L
+    private set
+
+  /**
+   * 读取缓存, 未命中时通过 [load] 加载并写入缓存
+   * 所有等待同一个key的调用方都取消后加载也会取消, 并等到加载真正结束才返回, 取消的请求不会在后台继续占用解码线程
+   * @param modified 图片的修改时间, 小于0时只使用内存缓存
+   * @param load 返回的Bitmap归缓存所有
+   */
+  @OptIn(DelicateCoroutinesApi::class)
+  suspend fun get(id: Long, modified: Long, size: Size, load: suspend () -> Bitmap?): Bitmap? {
+    val key = "${id}_${size.width}x${size.height}_$modified"
+    memory.get(key)?.let {
+      synchronized(this) {memoryHitCount ++}
+      return it
+    }
+    val task = synchronized(this) {
+      val existing = loading[key]
+      val task = if (existing != null) {
+        coalescedCount ++
+        existing
+      } else {
+        //加载不属于任何一个调用方, 由等待者计数决定是否取消
+        val deferred = GlobalScope.async(Dispatchers.IO, CoroutineStart.LAZY) {
+          try {
+            loadInternal(key, modified >= 0, load)
+          } catch (e: CancellationException) {
+            throw e
+          } catch (e: Exception) {
+            e.printStackTrace()
+            null
+          }
+        }
+        LoadTask(deferred).also {loading[key] = it}
+      }
+      task.waiters ++
+      task
+    }
+    task.deferred.start()
+    var cancelled = false
+    try {
+      return task.deferred.await()
+    } catch (e: CancellationException) {
+      cancelled = true
+      throw e
+    } finally {
+      val last = synchronized(this) {
+        task.waiters --
+        if (task.waiters == 0 && loading[key] === task) {
+          loading.remove(key)
+        }
+        task.waiters == 0
+      }
+      if (cancelled && last && ! task.deferred.isCompleted) {
+        task.deferred.cancel()
+        withContext(NonCancellable) {task.deferred.join()}
+      }
+    }
+  }
+
+  /**
+   * 只读取内存缓存
+   */
+  @JvmStatic
+  fun peek(id: Long, modified: Long, size: Size): Bitmap? = memory.get("${id}_${size.width}x${size.height}_$modified")
+
+  @JvmStatic
+  fun clearMemory() {
+    memory.evictAll()
+  }
+
+  @JvmStatic
+  @Synchronized
+  fun clear() {
+    memory.evictAll()
+    dir.listFiles()?.forEach {it.delete()}
+    diskSize = 0L
+  }
+
+  private suspend fun loadInternal(key: String, useDisk: Boolean, load: suspend () -> Bitmap?): Bitmap? {
+    val file = File(dir, "$key.jpg")
+    if (useDisk && file.exists()) {
+      val bitmap = BitmapFactory.decodeFile(file.absolutePath)
+      if (bitmap != null) {
+        file.setLastModified(System.currentTimeMillis())
+        synchronized(this) {diskHitCount ++}
+        memory.put(key, bitmap)
+        return bitmap
+      }
+      file.delete()
+    }
+    synchronized(this) {missCount ++}
+    val bitmap = load() ?: return null
+    //长期由缓存持有, 不再占用解码预算
+    DecodeMemoryGovernor.release(bitmap)
+    memory.put(key, bitmap)
+    if (useDisk) {
+      writeToDisk(file, bitmap)
+    }
+    return bitmap
+  }
+
+  private fun writeToDisk(file: File, bitmap: Bitmap) {
+    val temp = File(dir, "${file.name}.tmp")
+    try {
+      temp.outputStream().use {
+        if (! bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, it)) {
+          throw IOException("缩略图编码失败")
+        }
+      }
+      if (! temp.renameTo(file)) {
+        throw IOException("无法写入缩略图缓存")
+      }
+      synchronized(this) {
+        if (diskSize < 0) {
+          diskSize = dir.listFiles()?.sumOf {it.length()} ?: 0L
+        } else {
+          diskSize += file.length()
+        }
+        trimDisk()
+      }
+    } catch (e: IOException) {
+      e.printStackTrace()
+      temp.delete()
+    }
+  }
+
+  /**
+   * 按最后访问时间删除, 直到低于上限的3/4
+   */
+  private fun trimDisk() {
+    if (diskSize <= maxDiskSize) {
+      return
+    }
+    val files = dir.listFiles()?.sortedBy {it.lastModified()} ?: return
+    for (file in files) {
+      if (diskSize <= maxDiskSize * 3 / 4) {
+        break
+      }
+      val length = file.length()
+      if (file.delete()) {
+        diskSize -= length
+      }
+    }
+  }
+
+  override fun toString(): String {
+    return "ThumbnailCache(memory=${memory.size()}/${memory.maxSize()}, disk=$diskSize/$maxDiskSize, " +
+      "memoryHit=$memoryHitCount, diskHit=$diskHitCount, miss=$missCount, coalesced=$coalescedCount)"
+  }
+
+  private class LoadTask(val deferred: Deferred<Bitmap?>) {
+    var waiters = 0
+  }
+}
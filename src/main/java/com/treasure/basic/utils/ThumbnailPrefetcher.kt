@@ -0,0 +1,290 @@
+package com.treasure.basic.utils
+
+import android.graphics.Bitmap
+import android.util.Size
+import com.treasure.basic.entity.ImageMediaEntity
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import java.util.PriorityQueue
+import kotlin.math.abs
+
+/**
+ * 按滑动方向预加载缩略图
+ * 可见项优先, 其次是滑动方向上的下一屏; 离开窗口的请求会被取消, 队列长度有上限
+ * 快速滑动时不再为每个item启动一个协程, 同时最多只有 [parallelism] 个加载
+ * 加载中离开窗口的请求会取消底层解码(没有其他调用方等待同一张缩略图时), 等解码结束后才开始下一个
+ *
+ * @param scope 通常是 lifecycleScope, [onLoaded] 在该scope的调度器上回调
+ * @param onLoaded 返回的Bitmap由 [ThumbnailCache] 持有, 不能 recycle
+ */
+class ThumbnailPrefetcher @JvmOverloads constructor(
+  private val scope: CoroutineScope,
+  private val size: Size,
+  private val maxQueueSize: Int = 120,
+  private val parallelism: Int = ImageDispatchers.PARALLELISM,
+  private val onLoaded: (position: Int, image: ImageMediaEntity, bitmap: Bitmap) -> Unit
+) {
+
+  companion object {
+    /**
+     * 超过该速度(px/s)视为快速滑动, 多预加载一屏
+     */
+    private const val FLING_VELOCITY = 4000
+  }
+
+  private class Task(val position: Int, val image: ImageMediaEntity, var priority: Int) {
+    var job: Job? = null
+    var cancelled = false
+
+    fun cancel() {
+      cancelled = true
+      job?.cancel()
+    }
+  }
+
+  private val lock = Any()
+  private val queue = PriorityQueue<Task>(16, compareBy {it.priority})
+  private val queued = HashMap<Int, Task>()
+  private val running = HashMap<Int, Task>()
+  private val signal = Channel<Unit>(Channel.CONFLATED)
+  private var images: List<ImageMediaEntity> = emptyList()
+  private var windowStart = 0
+  private var windowEnd = - 1
+  private var workers: List<Job> = emptyList()
+
+  /**
+   * 开始过的加载次数, 包括中途取消的
+   */
+  var loadedCount = 0L
+    private set
+
+  /**
+   * 加载开始后离开窗口的次数, 包括加载中被取消和完成时已经不在窗口内
+   */
+  var wastedCount = 0L
+    private set
+
+  /**
+   * 开始加载前就离开窗口被移出队列的次数
+   */
+  var cancelledCount = 0L
+    private set
+
+  /**
+   * 等待加载的数量
+   */
+  val queueDepth: Int
+    get() = synchronized(lock) {queue.size}
+
+  val runningCount: Int
+    get() = synchronized(lock) {running.size}
+
+  /**
+   * 无效加载占比, [wastedCount] / [loadedCount]
+   */
+  val wasteRate: Float
+    get() = synchronized(lock) {if (loadedCount == 0L) 0f else wastedCount.toFloat() / loadedCount}
+
+  /**
+   * 设置数据, 清空正在等待和进行中的请求
+   */
+  fun submit(images: List<ImageMediaEntity>) {
+    synchronized(lock) {
+      this.images = images
+      cancelAll()
+      windowStart = 0
+      windowEnd = - 1
+    }
+  }
+
+  /**
+   * 滑动时调用
+   * @param firstVisible 第一个可见位置
+   * @param lastVisible 最后一个可见位置
+   * @param velocity 滑动速度(px/s), 正数表示向列表末尾滑动
+   */
+  fun onScroll(firstVisible: Int, lastVisible: Int, velocity: Int) {
+    if (lastVisible < firstVisible) {
+      return
+    }
+    val hits = ArrayList<Pair<Int, Bitmap>>()
+    val loaded: List<ImageMediaEntity>
+    synchronized(lock) {
+      loaded = images
+      if (loaded.isEmpty()) {
+        return
+      }
+      val last = minOf(lastVisible, loaded.size - 1)
+      val first = firstVisible.coerceIn(0, last)
+      val screen = last - first + 1
+      val ahead = if (abs(velocity) >= FLING_VELOCITY) screen * 2 else screen
+      when {
+        velocity > 0 -> {
+          windowStart = first
+          windowEnd = minOf(loaded.size - 1, last + ahead)
+        }
+        velocity < 0 -> {
+          windowStart = maxOf(0, first - ahead)
+          windowEnd = last
+        }
+        else -> {
+          windowStart = maxOf(0, first - screen / 2)
+          windowEnd = minOf(loaded.size - 1, last + screen / 2)
+        }
+      }
+      trim()
+      for (position in windowStart .. windowEnd) {
+        //可见项按位置排在最前, 预加载项按与可见区域的距离排序
+        val priority = when {
+          position in first .. last -> position - first
+          position > last -> screen + position - last
+          else -> screen + first - position
+        }
+        val task = queued[position]
+        if (task != null) {
+          if (task.priority != priority) {
+            queue.remove(task)
+            task.priority = priority
+            queue.add(task)
+          }
+          continue
+        }
+        //离开窗口时被取消的加载要等解码结束才移出 running, 回到窗口后重新排队, 否则直到下次滑动都不会加载
+        if (running[position]?.cancelled == false) {
+          continue
+        }
+        val image = loaded[position]
+        val cached = ThumbnailCache.peek(image.id.toLongOrNull() ?: - 1L, image.modified, size)
+        if (cached != null) {
+          if (position in first .. last) {
+            hits.add(position to cached)
+          }
+          continue
+        }
+        Task(position, image, priority).also {
+          queue.add(it)
+          queued[position] = it
+        }
+      }
+      while (queue.size > maxQueueSize) {
+        //PriorityQueue 没有取最大值的方法, 队列较小时直接查找
+        val lowest = queue.maxByOrNull {it.priority} ?: break
+        queue.remove(lowest)
+        queued.remove(lowest.position)
+        cancelledCount ++
+      }
+      ensureWorkers()
+    }
+    hits.forEach {(position, bitmap) -> onLoaded(position, loaded[position], bitmap)}
+    signal.trySend(Unit)
+  }
+
+  /**
+   * 取消所有请求, 停止加载
+   */
+  fun release() {
+    synchronized(lock) {
+      cancelAll()
+      workers.forEach {it.cancel()}
+      workers = emptyList()
+    }
+  }
+
+  /**
+   * 取消窗口外的请求
+   */
+  private fun trim() {
+    val iterator = queue.iterator()
+    while (iterator.hasNext()) {
+      val task = iterator.next()
+      if (task.position !in windowStart .. windowEnd) {
+        iterator.remove()
+        queued.remove(task.position)
+        cancelledCount ++
+      }
+    }
+    running.values.filter {it.position !in windowStart .. windowEnd}.forEach {it.cancel()}
+  }
+
+  private fun cancelAll() {
+    cancelledCount += queue.size
+    queue.clear()
+    queued.clear()
+    running.values.forEach {it.cancel()}
+  }
+
+  private fun ensureWorkers() {
+    if (workers.any {it.isActive}) {
+      return
+    }
+    workers = List(parallelism) {
+      scope.launch {
+        while (isActive) {
+          val task = synchronized(lock) {
+            queue.poll()?.also {
+              queued.remove(it.position)
+              running[it.position] = it
+              if (queue.isNotEmpty()) {
+                signal.trySend(Unit)
+              }
+            }
+          }
+          if (task == null) {
+            signal.receive()
+            continue
+          }
+          runTask(task)
+        }
+      }
+    }
+  }
+
+  /**
+   * 取消时等待底层加载真正结束, 同时进行的加载不超过 [parallelism]
+   */
+  private suspend fun runTask(task: Task) {
+    var delivered = false
+    val job = scope.launch {
+      val bitmap = ImageMediaUtil.loadThumbnail(task.image, size) ?: return@launch
+      val deliver = synchronized(lock) {
+        task.position in windowStart .. windowEnd && images.getOrNull(task.position) === task.image
+      }
+      if (deliver) {
+        delivered = true
+        onLoaded(task.position, task.image, bitmap)
+      }
+    }
+    synchronized(lock) {
+      task.job = job
+      if (task.cancelled) {
+        job.cancel()
+      }
+    }
+    try {
+      job.join()
+    } catch (e: CancellationException) {
+      job.cancel()
+      throw e
+    } finally {
+      synchronized(lock) {
+        if (running[task.position] === task) {
+          running.remove(task.position)
+        }
+        loadedCount ++
+        //加载过程中离开窗口被取消, 或完成时已经不在窗口内, 都属于无效加载
+        if (! delivered && (job.isCancelled || task.cancelled || task.position !in windowStart .. windowEnd)) {
+          wastedCount ++
+        }
+      }
+    }
+  }
+
+  override fun toString(): String {
+    return "ThumbnailPrefetcher(queue=$queueDepth, running=$runningCount, loaded=$loadedCount, " +
+      "wasted=$wastedCount, cancelled=$cancelledCount)"
+  }
+}
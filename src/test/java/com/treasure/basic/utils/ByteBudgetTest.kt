@@ -0,0 +1,104 @@
+package com.treasure.basic.utils
+
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ByteBudgetTest {
+
+  @Test
+  fun grantsWaitersInFifoOrder() = runBlocking {
+    val budget = ByteBudget(100)
+    val held = budget.acquire(80)
+    val order = mutableListOf<String>()
+    launch(start = CoroutineStart.UNDISPATCHED) {
+      budget.acquire(50)
+      order.add("first")
+    }
+    //剩余预算足够, 但前面有等待者, 也要排队
+    launch(start = CoroutineStart.UNDISPATCHED) {
+      budget.acquire(10)
+      order.add("second")
+    }
+    assertEquals(2, budget.waiting)
+    assertEquals(- 1L, budget.tryAcquire(10))
+
+    budget.release(held)
+    yield()
+    yield()
+    assertEquals(listOf("first", "second"), order)
+    assertEquals(60L, budget.used)
+    assertEquals(2L, budget.waitCount)
+  }
+
+  @Test
+  fun overCapacityRequestIsGrantedExclusively() = runBlocking {
+    val budget = ByteBudget(100)
+    assertEquals(100L, budget.acquire(500))
+    budget.release(100)
+
+    val held = budget.acquire(10)
+    var granted = 0L
+    val job = launch(start = CoroutineStart.UNDISPATCHED) {
+      granted = budget.acquire(500)
+    }
+    assertEquals(1, budget.waiting)
+
+    budget.release(held)
+    job.join()
+    assertEquals(100L, granted)
+    assertEquals(100L, budget.used)
+    assertEquals(- 1L, budget.tryAcquire(1))
+  }
+
+  @Test
+  fun cancelledWaiterLeavesQueueAndUnblocksNext() = runBlocking {
+    val budget = ByteBudget(100)
+    budget.acquire(60)
+    val first = launch(start = CoroutineStart.UNDISPATCHED) {
+      budget.acquire(80)
+    }
+    var secondGranted = false
+    launch(start = CoroutineStart.UNDISPATCHED) {
+      budget.acquire(30)
+      secondGranted = true
+    }
+    assertEquals(2, budget.waiting)
+
+    first.cancel()
+    first.join()
+    yield()
+    assertTrue(secondGranted)
+    assertEquals(0, budget.waiting)
+    assertEquals(90L, budget.used)
+  }
+
+  @Test
+  fun releasesBudgetGrantedToCancelledWaiter() = runBlocking {
+    val budget = ByteBudget(100)
+    val held = budget.acquire(100)
+    val job = launch(start = CoroutineStart.UNDISPATCHED) {
+      budget.acquire(50)
+    }
+    //释放时预算已经分配给等待者, 恢复执行前被取消
+    budget.release(held)
+    assertEquals(50L, budget.used)
+    job.cancel()
+    job.join()
+    assertEquals(0L, budget.used)
+  }
+
+  @Test
+  fun acquireNowCountsOverCommit() {
+    val budget = ByteBudget(100)
+    budget.acquireNow(80)
+    budget.acquireNow(40)
+    assertEquals(120L, budget.used)
+    assertEquals(1L, budget.overCommitCount)
+    assertEquals(120L, budget.peak)
+  }
+}
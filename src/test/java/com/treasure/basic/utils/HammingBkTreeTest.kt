@@ -0,0 +1,83 @@
+package com.treasure.basic.utils
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+class HammingBkTreeTest {
+
+  @Test
+  fun distanceCountsDifferentBits() {
+    assertEquals(0, HammingBkTree.distance(0x1234L, 0x1234L))
+    assertEquals(1, HammingBkTree.distance(0L, 1L))
+    assertEquals(64, HammingBkTree.distance(0L, - 1L))
+    assertEquals(2, HammingBkTree.distance(Long.MIN_VALUE, 1L))
+  }
+
+  @Test
+  fun emptyTreeFindsNothing() {
+    val tree = HammingBkTree()
+    assertTrue(tree.search(0L, 64).isEmpty())
+    assertEquals(0, tree.size)
+  }
+
+  @Test
+  fun findsIdsWithinDistance() {
+    val tree = HammingBkTree()
+    tree.add(0b0000L, 1)
+    tree.add(0b0001L, 2)
+    tree.add(0b0011L, 3)
+    tree.add(0b0111L, 4)
+    tree.add(0b1111L, 5)
+
+    assertEquals(listOf(1L), tree.search(0L, 0))
+    assertEquals(setOf(1L, 2L, 3L), tree.search(0L, 2).toSet())
+    assertEquals(setOf(3L, 4L, 5L), tree.search(0b0111L, 1).toSet())
+    assertEquals(5, tree.size)
+  }
+
+  @Test
+  fun keepsAllIdsWithSameHash() {
+    val tree = HammingBkTree()
+    tree.add(42L, 1)
+    tree.add(42L, 2)
+    tree.add(43L, 3)
+
+    assertEquals(setOf(1L, 2L), tree.search(42L, 0).toSet())
+    assertEquals(3, tree.size)
+  }
+
+  @Test
+  fun matchesLinearScan() {
+    val random = Random(7)
+    val hashes = LongArray(2000) {random.nextLong()}
+    val tree = HammingBkTree()
+    //一部分哈希只改变少量位, 保证有近似结果
+    for (i in hashes.indices) {
+      if (i % 3 == 0 && i > 0) {
+        hashes[i] = hashes[i - 1] xor (1L shl random.nextInt(64)) xor (1L shl random.nextInt(64))
+      }
+      tree.add(hashes[i], i.toLong())
+    }
+    repeat(50) {
+      val query = if (it % 2 == 0) hashes[random.nextInt(hashes.size)] else random.nextLong()
+      for (maxDistance in intArrayOf(0, 3, 10, 24)) {
+        val expected = hashes.indices.filter {i -> HammingBkTree.distance(hashes[i], query) <= maxDistance}
+          .map {i -> i.toLong()}.toSet()
+        assertEquals(expected, tree.search(query, maxDistance).toSet())
+      }
+    }
+  }
+
+  @Test
+  fun clearRemovesEverything() {
+    val tree = HammingBkTree()
+    tree.add(1L, 1)
+    tree.add(2L, 2)
+    tree.clear()
+
+    assertEquals(0, tree.size)
+    assertTrue(tree.search(1L, 64).isEmpty())
+  }
+}
@@ -0,0 +1,184 @@
+package com.treasure.basic.utils
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.Random
+
+class JpegMetadataStripperTest {
+
+  private val soi = bytes(0xFF, 0xD8)
+  private val eoi = bytes(0xFF, 0xD9)
+  private val app0 = segment(0xE0, "JFIF\u0000".toByteArray() + bytes(1, 1, 0, 0, 1, 0, 1, 0, 0))
+  private val icc = segment(0xE2, "ICC_PROFILE\u0000".toByteArray() + bytes(1, 1, 0x10, 0x20))
+  private val xmp = segment(0xE1, "http://ns.adobe.com/xap/1.0/\u0000<x:xmpmeta/>".toByteArray())
+  private val comment = segment(0xFE, "comment".toByteArray())
+  private val dqt = segment(0xDB, ByteArray(65) {it.toByte()})
+  private val sof = segment(0xC0, bytes(8, 0, 16, 0, 16, 1, 1, 0x11, 0))
+  private val sos = segment(0xDA, bytes(1, 1, 0, 0, 0x3F, 0))
+
+  @Test
+  fun keepsImageSegmentsAndDropsMetadata() {
+    val data = entropyData(Random(1), 512)
+    val jpeg = soi + app0 + exif(6, littleEndian = true) + xmp + icc + comment + dqt + sof + sos + data + eoi
+    val expected = soi + app0 + orientationExif(6) + icc + dqt + sof + sos + data + eoi
+
+    assertArrayEquals(expected, strip(jpeg))
+  }
+
+  @Test
+  fun dropsExifWithDefaultOrientation() {
+    val data = entropyData(Random(2), 64)
+    val jpeg = soi + exif(1, littleEndian = false) + dqt + sof + sos + data + eoi
+
+    assertArrayEquals(soi + dqt + sof + sos + data + eoi, strip(jpeg))
+  }
+
+  @Test
+  fun readsBigEndianOrientation() {
+    val data = entropyData(Random(3), 64)
+    val jpeg = soi + exif(8, littleEndian = false) + sof + sos + data + eoi
+
+    assertArrayEquals(soi + orientationExif(8) + sof + sos + data + eoi, strip(jpeg))
+  }
+
+  @Test
+  fun keepsStuffedBytesAndRestartMarkersAcrossChunks() {
+    //超过读取块大小, 0xFF00 和 RSTn 落在块边界附近
+    val data = entropyData(Random(4), 100_000)
+    val jpeg = soi + dqt + sof + sos + data + eoi
+
+    assertArrayEquals(jpeg, strip(jpeg))
+  }
+
+  @Test
+  fun dropsFillBytesBeforeMarkerAndDataAfterEoi() {
+    val data = entropyData(Random(5), 128)
+    val jpeg = soi + sof + sos + data + bytes(0xFF, 0xFF, 0xFF) + eoi + "trailer".toByteArray()
+
+    assertArrayEquals(soi + sof + sos + data + eoi, strip(jpeg))
+  }
+
+  @Test
+  fun handlesFillBytesAcrossChunkBoundary() {
+    //填充的0xFF跨越读取块的边界
+    val data = ByteArray(16 * 1024 - 8) {0x11}
+    val jpeg = soi + sof + sos + data + ByteArray(20) {0xFF.toByte()} + eoi
+
+    assertArrayEquals(soi + sof + sos + data + eoi, strip(jpeg))
+  }
+
+  @Test
+  fun handlesMultipleScans() {
+    val first = entropyData(Random(6), 20_000)
+    val second = entropyData(Random(7), 20_000)
+    val jpeg = soi + sof + sos + first + dqt + sos + second + eoi
+
+    assertArrayEquals(jpeg, strip(jpeg))
+  }
+
+  @Test
+  fun measureCountsDroppedBytesBeforeImageData() {
+    val exif = exif(6, littleEndian = true)
+    val jpeg = soi + app0 + exif + xmp + comment + sof + sos + entropyData(Random(8), 64) + eoi
+    val dropped = (exif.size - orientationExif(6).size) + xmp.size + comment.size
+
+    assertEquals(dropped.toLong(), JpegMetadataStripper.measure(ByteArrayInputStream(jpeg)))
+    assertEquals(0L, JpegMetadataStripper.measure(ByteArrayInputStream(soi + app0 + sof + sos + eoi)))
+  }
+
+  @Test
+  fun stripReturnsWrittenLength() {
+    val jpeg = soi + xmp + sof + sos + entropyData(Random(9), 64) + eoi
+    val out = ByteArrayOutputStream()
+    val written = JpegMetadataStripper.strip(ByteArrayInputStream(jpeg), out)
+
+    assertEquals((jpeg.size - xmp.size).toLong(), written)
+    assertEquals(written, out.size().toLong())
+  }
+
+  @Test
+  fun rejectsInvalidInput() {
+    assertFails(bytes(0x89, 0x50, 0x4E, 0x47))
+    //扫描数据没有结束
+    assertFails(soi + sof + sos + entropyData(Random(10), 64))
+    //段长度超出数据
+    assertFails(soi + bytes(0xFF, 0xE1, 0x10, 0x00, 0x01))
+  }
+
+  @Test
+  fun recognizesJpegMimeTypes() {
+    assertTrue(JpegMetadataStripper.isJpeg("image/jpeg"))
+    assertTrue(JpegMetadataStripper.isJpeg("image/jpg"))
+    assertFalse(JpegMetadataStripper.isJpeg("image/png"))
+    assertFalse(JpegMetadataStripper.isJpeg(null))
+  }
+
+  private fun strip(jpeg: ByteArray): ByteArray {
+    val out = ByteArrayOutputStream()
+    JpegMetadataStripper.strip(ByteArrayInputStream(jpeg), out)
+    return out.toByteArray()
+  }
+
+  private fun assertFails(jpeg: ByteArray) {
+    try {
+      strip(jpeg)
+      fail("应当抛出 IOException")
+    } catch (e: IOException) {
+      //预期
+    }
+  }
+
+  /**
+   * 随机扫描数据, 0xFF 后补 0x00, 并穿插 RSTn
+   */
+  private fun entropyData(random: Random, length: Int): ByteArray {
+    val out = ByteArrayOutputStream()
+    var restart = 0
+    while (out.size() < length) {
+      val b = random.nextInt(256)
+      out.write(b)
+      if (b == 0xFF) {
+        out.write(0)
+      }
+      if (random.nextInt(500) == 0) {
+        out.write(0xFF)
+        out.write(0xD0 + restart)
+        restart = (restart + 1) % 8
+      }
+    }
+    return out.toByteArray()
+  }
+
+  /**
+   * IFD0 包含宽度和方向两项的Exif
+   */
+  private fun exif(orientation: Int, littleEndian: Boolean): ByteArray {
+    fun u16(value: Int) = if (littleEndian) bytes(value and 0xFF, value shr 8) else bytes(value shr 8, value and 0xFF)
+    fun u32(value: Int) = if (littleEndian) u16(value and 0xFFFF) + u16(value ushr 16) else u16(value ushr 16) + u16(value and 0xFFFF)
+    val tiff = (if (littleEndian) bytes(0x49, 0x49) else bytes(0x4D, 0x4D)) + u16(42) + u32(8) +
+        u16(2) +
+        u16(0x0100) + u16(4) + u32(1) + u32(4000) +
+        u16(0x0112) + u16(3) + u32(1) + u16(orientation) + u16(0) +
+        u32(0) + ByteArray(32)
+    return segment(0xE1, "Exif\u0000\u0000".toByteArray() + tiff)
+  }
+
+  private fun orientationExif(orientation: Int): ByteArray {
+    val tiff = bytes(0x4D, 0x4D, 0x00, 0x2A, 0, 0, 0, 8, 0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, orientation, 0, 0, 0, 0, 0, 0)
+    return segment(0xE1, "Exif\u0000\u0000".toByteArray() + tiff)
+  }
+
+  private fun segment(marker: Int, body: ByteArray): ByteArray {
+    val length = body.size + 2
+    return bytes(0xFF, marker, length shr 8, length and 0xFF) + body
+  }
+
+  private fun bytes(vararg values: Int) = ByteArray(values.size) {values[it].toByte()}
+}